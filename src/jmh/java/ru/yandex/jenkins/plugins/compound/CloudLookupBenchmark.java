@@ -0,0 +1,116 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Label lookups done by {@link CompoundCloud} on every provisioning round: matching a label against growing configuration lists and finding a
+ * backend cloud among many.
+ *
+ * @author pupssman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CloudLookupBenchmark {
+
+	public static class Clouds extends JenkinsState {
+		@Param({ "1", "10", "100" })
+		public int configurations;
+
+		@Param({ "1", "10", "100" })
+		public int backends;
+
+		public CompoundCloud cloud;
+		public Label lastLabel;
+		public LabelAtom lastBackendLabel;
+
+		@Override
+		protected void setUp() throws Exception {
+			List<ConfigurationEntry> entries = new ArrayList<ConfigurationEntry>();
+
+			for (int i = 0; i < configurations; i++) {
+				entries.add(new ConfigurationEntry("compound-" + i, Collections.singletonList(new SlaveEntry(CompoundSlave.ROLE_ROOT, "backend-"
+						+ (backends - 1), "1"))));
+			}
+
+			Jenkins jenkins = Jenkins.getInstance();
+
+			for (int i = 0; i < backends; i++) {
+				jenkins.clouds.add(new IdleCloud("idle-" + i, "backend-" + i));
+			}
+
+			cloud = new CompoundCloud("compound", "0", entries, "60");
+			jenkins.clouds.add(cloud);
+
+			lastLabel = jenkins.getLabel("compound-" + (configurations - 1));
+			lastBackendLabel = jenkins.getLabelAtom("backend-" + (backends - 1));
+		}
+	}
+
+	@Benchmark
+	public boolean canProvision(Clouds state) {
+		return state.cloud.canProvision(state.lastLabel);
+	}
+
+	@Benchmark
+	public ConfigurationEntry configurationLookup(Clouds state) {
+		return state.cloud.getConfigurationEntry(state.lastLabel);
+	}
+
+	@Benchmark
+	public Cloud getCloudToProvision(Clouds state) {
+		return CompoundCloud.getCloudToProvision(state.lastBackendLabel);
+	}
+
+	@Benchmark
+	public List<Cloud> candidateLookup(Clouds state) {
+		return BackendCloudIndex.get().getCandidates(state.lastBackendLabel);
+	}
+
+	/**
+	 * Backend cloud serving a single label and never provisioning anything
+	 */
+	public static class IdleCloud extends Cloud {
+		private final String label;
+
+		public IdleCloud(String name, String label) {
+			super(name);
+			this.label = label;
+		}
+
+		@Override
+		public Collection<PlannedNode> provision(Label label, int excessWorkload) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean canProvision(Label label) {
+			return label != null && label.getName().equals(this.label);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Slave;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+
+/**
+ * Role map operations of {@link CompoundSlave} for compounds with many roles and sub-slaves.
+ *
+ * @author pupssman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CompoundSlaveBenchmark {
+
+	public static class Compound extends JenkinsState {
+		@Param({ "2", "16" })
+		public int roles;
+
+		@Param({ "4", "64" })
+		public int slavesPerRole;
+
+		public List<Entry> entries;
+		public CompoundSlave compound;
+
+		@Override
+		protected void setUp() throws Exception {
+			entries = new ArrayList<Entry>();
+
+			for (int role = 0; role < roles; role++) {
+				String roleName = role == 0 ? CompoundSlave.ROLE_ROOT : "ROLE" + role;
+
+				for (int i = 0; i < slavesPerRole; i++) {
+					entries.add(new Entry(rule.createSlave().getNodeName(), roleName));
+				}
+			}
+
+			compound = new CompoundSlave("compound", "benchmark", "compound", entries);
+		}
+	}
+
+	@Benchmark
+	public Map<String, List<String>> makeNames(Compound state) {
+		return CompoundSlave.makeNames(state.entries);
+	}
+
+	@Benchmark
+	public List<Entry> getEntries(Compound state) {
+		return state.compound.getEntries();
+	}
+
+	@Benchmark
+	public Map<String, List<Slave>> getAllSlaves(Compound state) {
+		return state.compound.getAllSlaves();
+	}
+
+	@Benchmark
+	public List<Slave> getSubSlaves(Compound state) {
+		return state.compound.getSubSlaves();
+	}
+
+	@Benchmark
+	public Slave getSlave(Compound state) {
+		return state.compound.getTopology().getSlave(CompoundSlave.ROLE_ROOT, state.slavesPerRole);
+	}
+}
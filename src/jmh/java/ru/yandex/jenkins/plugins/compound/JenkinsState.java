@@ -0,0 +1,79 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A {@link JenkinsRule} instance kept running for the whole benchmark trial.
+ *
+ * The rule is evaluated on its own thread, which parks inside the test body until the trial is over, so that benchmark threads can use
+ * {@link Jenkins#getInstance()} meanwhile.
+ *
+ * @author pupssman
+ */
+@State(Scope.Benchmark)
+public class JenkinsState {
+	public JenkinsRule rule;
+
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private Thread thread;
+	private volatile Throwable failure;
+
+	@Setup(Level.Trial)
+	public void startJenkins() throws Throwable {
+		rule = new JenkinsRule();
+		rule.timeout = 0;
+
+		final Statement statement = rule.apply(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				started.countDown();
+				finished.await();
+			}
+		}, Description.createTestDescription(getClass(), "benchmark"));
+
+		thread = new Thread("jenkins-for-benchmark") {
+			@Override
+			public void run() {
+				try {
+					statement.evaluate();
+				} catch (Throwable t) {
+					failure = t;
+					started.countDown();
+				}
+			}
+		};
+		thread.start();
+
+		if (!started.await(5, TimeUnit.MINUTES) || failure != null) {
+			throw new IllegalStateException("Jenkins failed to start", failure);
+		}
+
+		setUp();
+	}
+
+	/**
+	 * Populates Jenkins once it is up
+	 */
+	protected void setUp() throws Exception {
+		// pass
+	}
+
+	@TearDown(Level.Trial)
+	public void stopJenkins() throws InterruptedException {
+		finished.countDown();
+		thread.join();
+	}
+}
@@ -0,0 +1,56 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+
+/**
+ * {@link CompoundNodeProperty} environment computation against sub-slaves connected over local in-process channels, so that the remoting and
+ * reachability overhead is measured without real machines.
+ *
+ * @author pupssman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodePropertyBenchmark {
+
+	public static class OnlineCompound extends JenkinsState {
+		@Param({ "1", "4" })
+		public int slaves;
+
+		public CompoundSlave compound;
+
+		@Override
+		protected void setUp() throws Exception {
+			List<Entry> entries = new ArrayList<Entry>();
+
+			for (int i = 0; i < slaves; i++) {
+				entries.add(new Entry(rule.createOnlineSlave().getNodeName(), i == 0 ? CompoundSlave.ROLE_ROOT : "WORKER"));
+			}
+
+			compound = new CompoundSlave("compound", "benchmark", "compound", entries);
+		}
+	}
+
+	@Benchmark
+	public Map<String, String> computeValues(OnlineCompound state) throws CompoundingException {
+		return CompoundNodeProperty.computeValues(state.compound, TaskListener.NULL);
+	}
+}
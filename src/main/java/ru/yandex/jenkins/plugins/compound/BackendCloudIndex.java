@@ -0,0 +1,184 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.labels.LabelAtom;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.Cloud;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.model.Jenkins;
+
+import ru.yandex.jenkins.plugins.compound.BackendHealth.Breaker;
+
+/**
+ * Index of backend clouds able to provision a given label atom.
+ *
+ * Candidates are looked up once per label and cached until the configuration of {@link Jenkins} is saved, which is how clouds get added,
+ * removed or reconfigured. {@link #rank(LabelAtom)} orders them by their {@link BackendHealth}, so that sub-slaves are requested from the
+ * fastest healthy cloud first and the rest serve as failover.
+ *
+ * @author pupssman
+ */
+public final class BackendCloudIndex {
+	private static final BackendCloudIndex INSTANCE = new BackendCloudIndex();
+
+	// guarded by this
+	private List<Cloud> clouds = Collections.emptyList();
+	private final Map<String, List<Cloud>> candidates = new HashMap<String, List<Cloud>>();
+	private WeakReference<Jenkins> indexed = new WeakReference<Jenkins>(null);
+	private boolean stale = true;
+
+	public static BackendCloudIndex get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param labelAtom
+	 *            to provision
+	 * @return non-compound clouds capable of provisioning the label atom, in the order of {@link Jenkins#clouds}
+	 */
+	public synchronized List<Cloud> getCandidates(LabelAtom labelAtom) {
+		refresh();
+
+		List<Cloud> result = candidates.get(labelAtom.getName());
+
+		if (result == null) {
+			result = new ArrayList<Cloud>();
+			for (Cloud cloud : clouds) {
+				if (!(cloud instanceof CompoundCloud) && cloud.canProvision(labelAtom)) {
+					result.add(cloud);
+				}
+			}
+			result = Collections.unmodifiableList(result);
+			candidates.put(labelAtom.getName(), result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Orders candidates for a label atom: closed breakers first, then the ones that may be probed, then the ones backing off. Within each group
+	 * clouds with the lower expected latency come first; ties keep the order of {@link Jenkins#clouds}. Clouds that have not delivered a node yet
+	 * are expected to be as fast as the average of the ones that have.
+	 *
+	 * Breakers change concurrently, so they are read once up front and the snapshot is sorted.
+	 *
+	 * @param labelAtom
+	 *            to provision
+	 * @return candidates, best first
+	 */
+	public List<Cloud> rank(final LabelAtom labelAtom) {
+		List<Cloud> candidates = getCandidates(labelAtom);
+		List<Breaker> breakers = new ArrayList<Breaker>();
+
+		double known = 0;
+		int count = 0;
+		for (Cloud cloud : candidates) {
+			Breaker breaker = BackendHealth.get().getBreaker(cloud, labelAtom);
+			breakers.add(breaker);
+
+			if (breaker.getLatencyMillis() > 0) {
+				known += breaker.getLatencyMillis();
+				count++;
+			}
+		}
+
+		// with nothing known yet any positive prior will do: it still puts failing clouds behind untried ones
+		double prior = count == 0 ? 1 : known / count;
+
+		List<Ranked> ranked = new ArrayList<Ranked>();
+		for (int i = 0; i < candidates.size(); i++) {
+			ranked.add(new Ranked(candidates.get(i), getHealthRank(breakers.get(i)), breakers.get(i).getExpectedLatency(prior)));
+		}
+
+		Collections.sort(ranked, new Comparator<Ranked>() {
+			@Override
+			public int compare(Ranked o1, Ranked o2) {
+				int byHealth = o1.health - o2.health;
+				return byHealth != 0 ? byHealth : Double.compare(o1.latency, o2.latency);
+			}
+		});
+
+		List<Cloud> result = new ArrayList<Cloud>();
+		for (Ranked cloud : ranked) {
+			result.add(cloud.cloud);
+		}
+
+		return result;
+	}
+
+	/**
+	 * State of a candidate at the moment of ranking
+	 */
+	private static final class Ranked {
+		private final Cloud cloud;
+		private final int health;
+		private final double latency;
+
+		private Ranked(Cloud cloud, int health, double latency) {
+			this.cloud = cloud;
+			this.health = health;
+			this.latency = latency;
+		}
+	}
+
+	private static int getHealthRank(Breaker breaker) {
+		if (breaker.getState() == BackendHealth.State.CLOSED) {
+			return 0;
+		} else if (breaker.isAvailable()) {
+			return 1;
+		} else {
+			return 2;
+		}
+	}
+
+	/**
+	 * Drops the cached candidates, so that the next lookup reads {@link Jenkins#clouds} again
+	 */
+	public synchronized void invalidate() {
+		stale = true;
+	}
+
+	/**
+	 * Re-reads {@link Jenkins#clouds} after {@link #invalidate()} or a restart of {@link Jenkins}, and drops the breakers of the backends
+	 * that are gone along with the cached candidates
+	 */
+	private void refresh() {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		if (!stale && indexed.get() == jenkins) {
+			return;
+		}
+
+		clouds = new ArrayList<Cloud>(jenkins.clouds.toList());
+		candidates.clear();
+		indexed = new WeakReference<Jenkins>(jenkins);
+		stale = false;
+
+		BackendHealth.get().retain(clouds);
+	}
+
+	/**
+	 * Invalidates {@link BackendCloudIndex} whenever the configuration of {@link Jenkins}, clouds included, is saved
+	 *
+	 * @author pupssman
+	 */
+	@Extension
+	public static final class ConfigurationListener extends SaveableListener {
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if (o instanceof Jenkins) {
+				get().invalidate();
+			}
+		}
+	}
+}
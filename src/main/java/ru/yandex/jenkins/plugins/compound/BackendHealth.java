@@ -0,0 +1,334 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Health of backend clouds, tracked per (backend cloud, label atom) by a circuit breaker.
+ *
+ * A breaker opens when the recent success rate drops too low, blocks requests for an exponentially growing backoff and then lets a single probe
+ * through (half-open). A successful probe closes it again, so a transient error costs seconds rather than a flat retry timeout.
+ *
+ * Breakers also keep exponentially weighted averages of provisioning latency and failure rate, used by {@link BackendCloudIndex} to pick the
+ * fastest healthy cloud, which also drops the breakers of clouds removed from the configuration.
+ *
+ * @author pupssman
+ */
+public final class BackendHealth {
+	private static final BackendHealth INSTANCE = new BackendHealth();
+
+	private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+	public static BackendHealth get() {
+		return INSTANCE;
+	}
+
+	public Breaker getBreaker(Cloud backend, LabelAtom labelAtom) {
+		String key = backend.name + "\u0000" + labelAtom.getName();
+		Breaker breaker = breakers.get(key);
+
+		if (breaker == null) {
+			breakers.putIfAbsent(key, new Breaker(backend.name, labelAtom.getName()));
+			breaker = breakers.get(key);
+		}
+
+		return breaker;
+	}
+
+	/**
+	 * Drops the breakers of clouds that are gone and of label atoms their cloud no longer provisions
+	 *
+	 * @param clouds
+	 *            all the clouds currently configured
+	 */
+	public void retain(Collection<Cloud> clouds) {
+		Map<String, Cloud> byName = new HashMap<String, Cloud>();
+		for (Cloud cloud : clouds) {
+			byName.put(cloud.name, cloud);
+		}
+
+		for (Iterator<Breaker> it = breakers.values().iterator(); it.hasNext();) {
+			Breaker breaker = it.next();
+			Cloud cloud = byName.get(breaker.getCloud());
+
+			if (cloud == null || !cloud.canProvision(new LabelAtom(breaker.getLabel()))) {
+				it.remove();
+			}
+		}
+	}
+
+	public List<Breaker> getBreakers() {
+		List<Breaker> result = new ArrayList<Breaker>(breakers.values());
+
+		Collections.sort(result, new Comparator<Breaker>() {
+			@Override
+			public int compare(Breaker o1, Breaker o2) {
+				int byCloud = o1.getCloud().compareTo(o2.getCloud());
+				return byCloud != 0 ? byCloud : o1.getLabel().compareTo(o2.getLabel());
+			}
+		});
+
+		return result;
+	}
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Circuit breaker for a single (backend cloud, label atom)
+	 *
+	 * @author pupssman
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Breaker {
+		static final int WINDOW = 20;
+		static final int MIN_SAMPLES = 3;
+		static final double MIN_SUCCESS_RATE = 0.5;
+		static final long BASE_BACKOFF_MILLIS = 5000;
+		static final long PROBE_TIMEOUT_MILLIS = 15 * 60 * 1000;
+		static final double EWMA_WEIGHT = 0.3;
+		static final double MAX_FAILURE_RATE = 0.95;
+
+		private final String cloud;
+		private final String label;
+
+		// guarded by this
+		private State state = State.CLOSED;
+		private final boolean[] window = new boolean[WINDOW];
+		private int samples = 0;
+		private int position = 0;
+		private long baseBackoff = BASE_BACKOFF_MILLIS;
+		private long backoff = 0;
+		private long openUntil = 0;
+		private boolean probing = false;
+		private long probeStarted = 0;
+		private long successes = 0;
+		private long failures = 0;
+		private double latency = 0;
+		private double failureRate = 0;
+
+		Breaker(String cloud, String label) {
+			this.cloud = cloud;
+			this.label = label;
+		}
+
+		/**
+		 * Checks whether a request to the backend should be made now. In the half-open state only one probe is let through at a time.
+		 *
+		 * @return <b>true</b> if the caller may provision
+		 */
+		public boolean allowRequest() {
+			return allowRequest(System.currentTimeMillis());
+		}
+
+		synchronized boolean allowRequest(long now) {
+			if (state == State.OPEN && now >= openUntil) {
+				state = State.HALF_OPEN;
+				probing = false;
+			}
+
+			switch (state) {
+			case CLOSED:
+				return true;
+			case HALF_OPEN:
+				// a probe that never reported back must not keep the breaker half-open forever
+				if (probing && now - probeStarted < PROBE_TIMEOUT_MILLIS) {
+					return false;
+				}
+				probing = true;
+				probeStarted = now;
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Gives the half-open probe back without an outcome, when the request it was taken for was not made after all or was cancelled
+		 */
+		public synchronized void releaseProbe() {
+			if (state == State.HALF_OPEN) {
+				probing = false;
+			}
+		}
+
+		/**
+		 * @return <b>true</b> if a request would be let through right now, without taking the half-open probe
+		 */
+		public synchronized boolean isAvailable() {
+			long now = System.currentTimeMillis();
+			return state == State.CLOSED || (state == State.OPEN && now >= openUntil)
+					|| (state == State.HALF_OPEN && (!probing || now - probeStarted >= PROBE_TIMEOUT_MILLIS));
+		}
+
+		/**
+		 * @return <b>true</b> if the breaker is open and its backoff has not passed yet
+		 */
+		public synchronized boolean isBackingOff() {
+			return state == State.OPEN && System.currentTimeMillis() < openUntil;
+		}
+
+		/**
+		 * @param latencyMillis
+		 *            time from the request to the node being ready
+		 */
+		public void recordSuccess(long latencyMillis) {
+			record(true, System.currentTimeMillis(), 0);
+			recordLatency(latencyMillis);
+		}
+
+		synchronized void recordLatency(long latencyMillis) {
+			latency = latency == 0 ? latencyMillis : latency + EWMA_WEIGHT * (latencyMillis - latency);
+		}
+
+		/**
+		 * @param maxBackoffMillis
+		 *            upper bound of the backoff, <b>0</b> for the default one
+		 */
+		public void recordFailure(long maxBackoffMillis) {
+			record(false, System.currentTimeMillis(), maxBackoffMillis);
+		}
+
+		synchronized void record(boolean success, long now, long maxBackoffMillis) {
+			window[position] = success;
+			position = (position + 1) % WINDOW;
+			samples = Math.min(WINDOW, samples + 1);
+
+			if (success) {
+				successes++;
+			} else {
+				failures++;
+			}
+
+			failureRate += EWMA_WEIGHT * ((success ? 0 : 1) - failureRate);
+
+			if (state == State.HALF_OPEN) {
+				probing = false;
+				if (success) {
+					close();
+				} else {
+					open(now, maxBackoffMillis);
+				}
+			} else if (state == State.CLOSED && !success && samples >= MIN_SAMPLES && getSuccessRate() < MIN_SUCCESS_RATE) {
+				open(now, maxBackoffMillis);
+			}
+		}
+
+		private void open(long now, long maxBackoffMillis) {
+			long limit = maxBackoffMillis > 0 ? Math.max(baseBackoff, maxBackoffMillis) : Long.MAX_VALUE;
+			backoff = backoff == 0 ? baseBackoff : Math.min(limit, backoff * 2);
+			openUntil = now + backoff;
+			state = State.OPEN;
+		}
+
+		private void close() {
+			state = State.CLOSED;
+			backoff = 0;
+			openUntil = 0;
+			samples = 0;
+			position = 0;
+		}
+
+		@Exported
+		public String getCloud() {
+			return cloud;
+		}
+
+		@Exported
+		public String getLabel() {
+			return label;
+		}
+
+		@Exported
+		public synchronized State getState() {
+			return state;
+		}
+
+		/**
+		 * @return share of successes among the recent outcomes
+		 */
+		@Exported
+		public synchronized double getSuccessRate() {
+			if (samples == 0) {
+				return 1.0;
+			}
+
+			int good = 0;
+			for (int i = 0; i < samples; i++) {
+				if (window[i]) {
+					good++;
+				}
+			}
+			return ((double) good) / samples;
+		}
+
+		/**
+		 * @return moving average of the time it takes to get a node, <b>0</b> if unknown yet
+		 */
+		@Exported
+		public synchronized long getLatencyMillis() {
+			return (long) latency;
+		}
+
+		/**
+		 * @return moving average of the share of failed requests
+		 */
+		@Exported
+		public synchronized double getFailureRate() {
+			return failureRate;
+		}
+
+		/**
+		 * Expected time to get a working node, retries included.
+		 *
+		 * @param prior
+		 *            latency assumed for a cloud that has not delivered a node yet, so that one failing from the start does not look instant
+		 */
+		public synchronized double getExpectedLatency(double prior) {
+			return (latency == 0 ? prior : latency) / (1 - Math.min(MAX_FAILURE_RATE, failureRate));
+		}
+
+		/**
+		 * @param baseBackoffMillis
+		 *            backoff the breaker opens with the first time, doubled on every failed probe
+		 */
+		public synchronized void setBaseBackoffMillis(long baseBackoffMillis) {
+			this.baseBackoff = baseBackoffMillis;
+		}
+
+		@Exported
+		public synchronized long getBackoffMillis() {
+			return backoff;
+		}
+
+		@Exported
+		public synchronized long getOpenUntil() {
+			return openUntil;
+		}
+
+		@Exported
+		public synchronized long getSuccesses() {
+			return successes;
+		}
+
+		@Exported
+		public synchronized long getFailures() {
+			return failures;
+		}
+	}
+}
@@ -0,0 +1,793 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Descriptor.FormException;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.slaves.RetentionStrategy;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+
+import ru.yandex.jenkins.plugins.compound.BackendHealth.Breaker;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+
+/**
+ * A single in-flight assembly of a {@link CompoundSlave} by {@link CompoundCloud}.
+ *
+ * The assembly is a chain of {@link ListenableFuture}s running on {@link ProvisioningExecutor}: no thread waits for the backend clouds while
+ * sub-slaves are being provisioned.
+ *
+ * @author pupssman
+ */
+class CompoundAssembly {
+	private static final Logger logger = Logger.getLogger(CompoundAssembly.class.getCanonicalName());
+
+	private final String cloudName;
+	private final ConfigurationEntry entry;
+	private final String nodeName;
+	private final long maxBackoffMillis;
+	private final ProvisioningExecutor executor = ProvisioningExecutor.get();
+	private volatile List<GroupProvisioning> groups = Collections.emptyList();
+
+	// assemblies started and not yet finished, see #getInFlight()
+	private static final Set<CompoundAssembly> running = Collections.newSetFromMap(new ConcurrentHashMap<CompoundAssembly, Boolean>());
+
+	/**
+	 * @param cloudName
+	 *            of the {@link CompoundCloud} the new compound belongs to
+	 * @param entry
+	 *            to deploy
+	 * @param nodeName
+	 *            of the new compound
+	 * @param maxBackoffMillis
+	 *            cap for {@link BackendHealth} backoff caused by failures of this assembly
+	 */
+	CompoundAssembly(String cloudName, ConfigurationEntry entry, String nodeName, long maxBackoffMillis) {
+		this.cloudName = cloudName;
+		this.entry = entry;
+		this.nodeName = nodeName;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Starts provisioning of all the sub-slaves
+	 *
+	 * @return future of the assembled {@link CompoundSlave}, not yet added to {@link Jenkins}
+	 */
+	ListenableFuture<CompoundSlave> start() {
+		logger.info(MessageFormat.format("Starting provision compoundSlave {0}", nodeName));
+
+		final long started = System.currentTimeMillis();
+
+		final List<GroupProvisioning> groups = new ArrayList<GroupProvisioning>();
+		List<ListenableFuture<List<Entry>>> futures = new ArrayList<ListenableFuture<List<Entry>>>();
+
+		this.groups = groups;
+		running.add(this);
+
+		// roles sharing a backend label and a share size are requested together
+		for (List<SlaveEntry> group : groupByProvisioningLabel(entry.getEntries()).values()) {
+			GroupProvisioning provisioning = new GroupProvisioning(group);
+			groups.add(provisioning);
+			futures.add(provisioning.start());
+		}
+
+		// allAsList fails as soon as any group fails, so siblings get aborted right away instead of being waited for
+		ListenableFuture<CompoundSlave> result = Futures.transform(Futures.allAsList(futures), new AsyncFunction<List<List<Entry>>, CompoundSlave>() {
+			@Override
+			public ListenableFuture<CompoundSlave> apply(List<List<Entry>> input) throws Exception {
+				List<Entry> slaveEntries = new ArrayList<CompoundSlave.Entry>();
+
+				for (List<Entry> group : input) {
+					slaveEntries.addAll(group);
+				}
+
+				register(groups);
+
+				return Futures.immediateFuture(assemble(slaveEntries));
+			}
+		}, executor.getService());
+
+		Futures.addCallback(result, new FutureCallback<CompoundSlave>() {
+			@Override
+			public void onSuccess(CompoundSlave result) {
+				running.remove(CompoundAssembly.this);
+				ProvisioningMetrics.get().record(ProvisioningMetrics.ASSEMBLY, getConfiguration(), null, started, true);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				running.remove(CompoundAssembly.this);
+				ProvisioningMetrics.get().record(ProvisioningMetrics.ASSEMBLY, getConfiguration(), null, started, false);
+				logger.log(Level.SEVERE, MessageFormat.format("Deployment of {0} failed. Cleaning up..", nodeName), t);
+				for (GroupProvisioning group : groups) {
+					group.abort();
+				}
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * @return names of the compounds being assembled now and of all the nodes their groups hold
+	 */
+	static Set<String> getInFlight() {
+		Set<String> result = new HashSet<String>();
+
+		for (CompoundAssembly assembly : running) {
+			result.add(assembly.nodeName);
+
+			for (GroupProvisioning group : assembly.groups) {
+				result.addAll(group.getNodeNames());
+			}
+		}
+
+		return result;
+	}
+
+	private String getConfiguration() {
+		return entry.getLabelAtom().getName();
+	}
+
+	/**
+	 * Adds the sub-slaves of all the groups to {@link Jenkins} with a single update of its node list.
+	 *
+	 * {@link Jenkins#addNode(Node)} saves the node list and recalculates computers and labels every time, which is what a compound of many
+	 * sub-slaves should not pay for each of them. The sub-slaves are recorded in {@link SubSlaveJournal} with a single save as well, before they
+	 * are registered.
+	 *
+	 * @param groups
+	 *            whose sub-slaves to register
+	 * @throws CompoundingException
+	 *             if registration failed
+	 */
+	private void register(List<GroupProvisioning> groups) throws CompoundingException {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		// holds off GroupProvisioning#abort(), so that nodes of an aborted group are never registered
+		synchronized (this) {
+			List<Node> nodes = new ArrayList<Node>();
+
+			for (GroupProvisioning group : groups) {
+				nodes.addAll(group.getUnregistered());
+			}
+
+			if (nodes.isEmpty()) {
+				return;
+			}
+
+			// journaled before they are registered, so leftovers of this assembly can be told from hand-made nodes after a restart at any point,
+			// see CompoundReconciler
+			List<String> names = new ArrayList<String>();
+			for (Node node : nodes) {
+				names.add(node.getNodeName());
+			}
+			SubSlaveJournal.get().record(names);
+
+			long started = System.currentTimeMillis();
+			boolean added = false;
+
+			try {
+				// same lock as Jenkins#addNode and Jenkins#removeNode, so concurrent changes of the node list are not lost
+				synchronized (jenkins) {
+					List<Node> all = new ArrayList<Node>(jenkins.getNodes());
+					all.addAll(nodes);
+					jenkins.setNodes(all);
+				}
+				added = true;
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Failed to add Nodes to jenkins: " + e.getMessage(), e);
+				throw new CompoundingException("Failed to add Nodes to jenkins: " + e.getMessage(), e);
+			} finally {
+				ProvisioningMetrics.get().record(ProvisioningMetrics.REGISTER, getConfiguration(), null, started, added);
+			}
+
+			SubSlaveJournal.get().forget(names);
+		}
+	}
+
+	private CompoundSlave assemble(List<Entry> slaveEntries) throws CompoundingException {
+		try {
+			CompoundSlave result = new CompoundSlave(nodeName, "Dynamically-created compound node for label " + entry.getLabelAtom(), entry
+					.getLabelAtom().toString(), slaveEntries);
+			result.setCloudName(cloudName);
+
+			if (entry.isReusable()) {
+				result.setRetentionStrategy(new CompoundRetentionStrategy(entry.getReuseIdleMinutes(), entry.getReuseBuilds()));
+			}
+
+			return result;
+		} catch (FormException e) {
+			logger.log(Level.SEVERE, "Form exception: " + e.getMessage(), e);
+			throw new CompoundingException("Configuration error: " + e.getMessage(), e);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "IO exception: " + e.getMessage(), e);
+			throw new CompoundingException("IO Exception: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Groups {@link SlaveEntry}s by the label atom they are provisioned with and by {@link SlaveEntry#getExecutors()}, preserving their order
+	 *
+	 * @param entries
+	 * @return label atom name and executors -&gt; entries using them
+	 */
+	private static Map<String, List<SlaveEntry>> groupByProvisioningLabel(List<SlaveEntry> entries) {
+		Map<String, List<SlaveEntry>> result = new LinkedHashMap<String, List<SlaveEntry>>();
+
+		for (SlaveEntry slaveEntry : entries) {
+			String key = slaveEntry.getLabelAtomForProvisioning().getName() + "\u0000" + slaveEntry.getExecutors();
+			if (result.get(key) == null) {
+				result.put(key, new ArrayList<SlaveEntry>());
+			}
+			result.get(key).add(slaveEntry);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Provisions sub-slaves for a group of {@link SlaveEntry}s sharing the same provisioning label.
+	 *
+	 * All the instances are requested from the best backend cloud (see {@link BackendCloudIndex#rank(LabelAtom)}) in a single call; per-instance
+	 * calls are made only for what the backend failed to deliver, as long as the largest {@link SlaveEntry#getAttempts()} of the group allows.
+	 * Shares of sub-slaves other compounds use (see {@link SubSlaveReservations}) and then sub-slaves parked in {@link SubSlavePool} are used
+	 * before any backend is asked.
+	 * Delivered nodes are kept between attempts. What one cloud refuses or fails to deliver is requested from the next candidate.
+	 *
+	 * Sub-slaves are not added to {@link Jenkins} by the group, see {@link CompoundAssembly#register(List)}.
+	 *
+	 * When {@link #abort()}ed, registered sub-slaves are cleaned up, delivered ones are disposed of and the ones still being provisioned by the
+	 * backend are disposed of as soon as they materialise.
+	 *
+	 * @author pupssman
+	 */
+	private class GroupProvisioning {
+		private final List<SlaveEntry> slaveEntries;
+		private final LabelAtom labelAtom;
+		private final int wanted;
+		private final int timeout;
+		private final int attempts;
+		private final int executors;
+		private final SettableFuture<List<Entry>> result = SettableFuture.create();
+		private volatile Cloud backend;
+
+		// guarded by this
+		private boolean aborted = false;
+		private final Set<Cloud> failedBackends = new HashSet<Cloud>();
+		private final List<Node> delivered = new ArrayList<Node>();
+		private final Set<Node> shared = new HashSet<Node>();
+		private final Map<Node, Entry> assigned = new LinkedHashMap<Node, Entry>();
+		private final Map<ListenableFuture<Node>, Future<Node>> pending = new HashMap<ListenableFuture<Node>, Future<Node>>();
+
+		private GroupProvisioning(List<SlaveEntry> slaveEntries) {
+			this.slaveEntries = slaveEntries;
+			this.labelAtom = slaveEntries.get(0).getLabelAtomForProvisioning();
+			this.executors = slaveEntries.get(0).getExecutors();
+
+			int number = 0;
+			int deadline = 0;
+			int budget = 1;
+			for (SlaveEntry slaveEntry : slaveEntries) {
+				number += slaveEntry.getNumber();
+				budget = Math.max(budget, slaveEntry.getAttempts());
+				if (slaveEntry.getProvisioningTimeout() > 0 && (deadline == 0 || slaveEntry.getProvisioningTimeout() < deadline)) {
+					deadline = slaveEntry.getProvisioningTimeout();
+				}
+			}
+			this.wanted = number;
+			this.timeout = deadline;
+			this.attempts = budget;
+		}
+
+		/**
+		 * @return entries for all the provisioned sub-slaves, in the order of {@link #slaveEntries}
+		 */
+		private ListenableFuture<List<Entry>> start() {
+			ListenableFuture<List<ListenableFuture<Node>>> planned = executor.submit(new Callable<List<ListenableFuture<Node>>>() {
+				@Override
+				public List<ListenableFuture<Node>> call() throws Exception {
+					if (BackendCloudIndex.get().getCandidates(labelAtom).isEmpty()) {
+						String message = MessageFormat.format("No cloud is capable of deploying requested label atom {0}", labelAtom);
+						logger.warning(message);
+						throw new CompoundingException(message);
+					}
+
+					return provision(wanted);
+				}
+			});
+
+			ListenableFuture<List<Node>> collected = Futures.transform(planned, WAIT_ALL);
+
+			ListenableFuture<List<Node>> completed = Futures.transform(collected, new AsyncFunction<List<Node>, List<Node>>() {
+				@Override
+				public ListenableFuture<List<Node>> apply(List<Node> input) {
+					return requestShortfall(2);
+				}
+			});
+
+			final ListenableFuture<List<Entry>> chain = Futures.transform(completed, new AsyncFunction<List<Node>, List<Entry>>() {
+				@Override
+				public ListenableFuture<List<Entry>> apply(List<Node> input) throws Exception {
+					return Futures.immediateFuture(assign());
+				}
+			}, executor.getService());
+
+			Futures.addCallback(chain, new FutureCallback<List<Entry>>() {
+				@Override
+				public void onSuccess(List<Entry> entries) {
+					result.set(entries);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					result.setException(t);
+				}
+			});
+
+			if (timeout > 0) {
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (result.setException(new CompoundingException(MessageFormat.format(
+								"Provisioning of label atom {0} for roles {1} did not finish within {2} seconds", labelAtom, getRoles(), timeout)))) {
+							if (backend != null) {
+								BackendHealth.get().getBreaker(backend, labelAtom).recordFailure(maxBackoffMillis);
+							}
+							chain.cancel(false);
+						}
+					}
+				}, timeout, TimeUnit.SECONDS);
+			}
+
+			return result;
+		}
+
+		/**
+		 * Asks the backends for nodes, best one first. Whatever a backend does not plan, including failing the request, is asked from the next
+		 * one; backends that failed this group are tried last.
+		 *
+		 * @param workload
+		 *            to request
+		 * @return futures of the nodes planned by the backends
+		 */
+		private List<ListenableFuture<Node>> provision(int workload) {
+			List<ListenableFuture<Node>> result = new ArrayList<ListenableFuture<Node>>();
+
+			for (Node node : SubSlaveReservations.get().share(labelAtom, executors, nodeName, workload)) {
+				synchronized (this) {
+					shared.add(node);
+				}
+				take(node, result);
+			}
+
+			for (Node node : SubSlavePool.get().take(labelAtom, workload - result.size(), nodeName)) {
+				take(node, result);
+			}
+
+			for (Cloud cloud : getBackends()) {
+				if (result.size() >= workload) {
+					break;
+				}
+
+				Breaker breaker = BackendHealth.get().getBreaker(cloud, labelAtom);
+				if (!breaker.allowRequest()) {
+					// half-open and somebody else is probing it
+					continue;
+				}
+
+				long requested = System.currentTimeMillis();
+
+				try {
+					Collection<PlannedNode> plannedNodes = cloud.provision(labelAtom, workload - result.size());
+					backend = cloud;
+					if (plannedNodes.isEmpty()) {
+						breaker.releaseProbe();
+					}
+					result.addAll(watch(plannedNodes, cloud, breaker, requested));
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, MessageFormat.format("Cloud {0} failed to provision label atom {1}", cloud.name, labelAtom), e);
+					breaker.recordFailure(maxBackoffMillis);
+					backendFailed(cloud);
+				}
+			}
+
+			return result;
+		}
+
+		/**
+		 * Takes a node available right away into {@link #delivered}
+		 */
+		private void take(Node node, List<ListenableFuture<Node>> result) {
+			boolean dispose;
+
+			synchronized (this) {
+				dispose = aborted;
+				if (!aborted) {
+					delivered.add(node);
+				}
+			}
+
+			if (dispose) {
+				dispose(node);
+			} else {
+				result.add(Futures.immediateFuture(node));
+			}
+		}
+
+		/**
+		 * Gets rid of a node this group does not need, only giving up the share of a node other compounds use
+		 */
+		private void dispose(Node node) {
+			boolean share;
+
+			synchronized (this) {
+				share = shared.remove(node);
+			}
+
+			if (share && !SubSlaveReservations.get().release(node.getNodeName(), nodeName)) {
+				// the others still use it
+				return;
+			}
+
+			CompoundCloud.dispose(node, nodeName);
+		}
+
+		/**
+		 * @return candidate backends not backing off, in order of preference
+		 */
+		private List<Cloud> getBackends() {
+			List<Cloud> preferred = new ArrayList<Cloud>();
+			List<Cloud> failed = new ArrayList<Cloud>();
+
+			synchronized (this) {
+				for (Cloud cloud : BackendCloudIndex.get().rank(labelAtom)) {
+					if (BackendHealth.get().getBreaker(cloud, labelAtom).isBackingOff()) {
+						continue;
+					}
+					if (failedBackends.contains(cloud)) {
+						failed.add(cloud);
+					} else {
+						preferred.add(cloud);
+					}
+				}
+			}
+
+			preferred.addAll(failed);
+			return preferred;
+		}
+
+		private synchronized void backendFailed(Cloud cloud) {
+			failedBackends.add(cloud);
+		}
+
+		/**
+		 * Starts watching nodes planned by a backend.
+		 *
+		 * @param plannedNodes
+		 *            to watch
+		 * @param cloud
+		 *            that planned the nodes
+		 * @param breaker
+		 *            to report the outcomes to
+		 * @param requested
+		 *            when the nodes were requested
+		 * @return futures of the nodes, successful ones get collected in {@link #delivered}
+		 */
+		private List<ListenableFuture<Node>> watch(Collection<PlannedNode> plannedNodes, final Cloud cloud, final Breaker breaker, final long requested) {
+			List<ListenableFuture<Node>> result = new ArrayList<ListenableFuture<Node>>();
+
+			for (PlannedNode plannedNode : plannedNodes) {
+				synchronized (this) {
+					if (aborted) {
+						// nobody waits for the outcome any more
+						breaker.releaseProbe();
+						disposeWhenReady(plannedNode.future);
+						continue;
+					}
+
+					final ListenableFuture<Node> future = executor.listen(plannedNode.future);
+					pending.put(future, plannedNode.future);
+					result.add(future);
+
+					// off the watcher thread, which must keep polling the other futures
+					Futures.addCallback(future, new FutureCallback<Node>() {
+						@Override
+						public void onSuccess(Node node) {
+							boolean dispose;
+
+							synchronized (GroupProvisioning.this) {
+								pending.remove(future);
+								dispose = aborted;
+								if (!aborted && node != null) {
+									delivered.add(node);
+								}
+							}
+
+							if (!dispose && node != null) {
+								// Jenkins does not know the node until the assembly registers it
+								SubSlaveJournal.get().deliver(node);
+							}
+
+							// the backend did deliver, even if the group does not need the node any more
+							breaker.recordSuccess(System.currentTimeMillis() - requested);
+
+							if (dispose) {
+								CompoundCloud.dispose(node, nodeName);
+							} else {
+								ProvisioningMetrics.get().record(ProvisioningMetrics.PROVISION, getConfiguration(), labelAtom.getName(), requested, true);
+							}
+						}
+
+						@Override
+						public void onFailure(Throwable t) {
+							synchronized (GroupProvisioning.this) {
+								pending.remove(future);
+								if (aborted) {
+									// cancelled by the abort, which says nothing about the backend
+									breaker.releaseProbe();
+									return;
+								}
+							}
+							logger.log(Level.SEVERE, MessageFormat.format("Provisioning by cloud {0} failed", cloud.name), t);
+							breaker.recordFailure(maxBackoffMillis);
+							backendFailed(cloud);
+							ProvisioningMetrics.get().record(ProvisioningMetrics.PROVISION, getConfiguration(), labelAtom.getName(), requested, false);
+						}
+					}, executor.getService());
+				}
+			}
+
+			return result;
+		}
+
+		/**
+		 * Asks the backend for the missing nodes one by one, keeping the delivered ones, until the attempt budget is exhausted
+		 *
+		 * @param attempt
+		 *            number of this attempt, the initial batch request being the first one
+		 * @return future completing when the group is complete or out of attempts
+		 */
+		private ListenableFuture<List<Node>> requestShortfall(final int attempt) {
+			final int missing;
+
+			synchronized (this) {
+				if (aborted) {
+					return Futures.immediateFailedFuture(new CancellationException("Provisioning of label atom " + labelAtom + " was aborted"));
+				}
+				missing = wanted - delivered.size();
+			}
+
+			if (missing <= 0 || attempt > attempts) {
+				return Futures.immediateFuture(Collections.<Node> emptyList());
+			}
+
+			logger.info(MessageFormat.format("Backend delivered {0} of {1} nodes for label atom {2}, requesting the rest one by one (attempt {3} of {4})",
+					wanted - missing, wanted, labelAtom, attempt, attempts));
+
+			ListenableFuture<List<ListenableFuture<Node>>> planned = executor.submit(new Callable<List<ListenableFuture<Node>>>() {
+				@Override
+				public List<ListenableFuture<Node>> call() throws Exception {
+					List<ListenableFuture<Node>> futures = new ArrayList<ListenableFuture<Node>>();
+					for (int i = 0; i < missing; i++) {
+						futures.addAll(provision(1));
+					}
+					return futures;
+				}
+			});
+
+			return Futures.transform(Futures.transform(planned, WAIT_ALL), new AsyncFunction<List<Node>, List<Node>>() {
+				@Override
+				public ListenableFuture<List<Node>> apply(List<Node> input) {
+					return requestShortfall(attempt + 1);
+				}
+			});
+		}
+
+		/**
+		 * Assigns delivered nodes their roles
+		 *
+		 * @return entries for the assigned nodes
+		 * @throws CompoundingException
+		 *             if not enough nodes were delivered
+		 */
+		private synchronized List<Entry> assign() throws CompoundingException {
+			if (aborted) {
+				throw new CancellationException("Provisioning of label atom " + labelAtom + " was aborted");
+			}
+
+			while (delivered.size() > wanted) {
+				dispose(delivered.remove(delivered.size() - 1));
+			}
+
+			Iterator<Node> iterator = delivered.iterator();
+
+			for (SlaveEntry slaveEntry : slaveEntries) {
+				for (int i = 0; i < slaveEntry.getNumber() && iterator.hasNext(); i++) {
+					Node node = iterator.next();
+
+					// kept for the period of provisioning, the compound hands its own strategy over, see CompoundSlave#setRetentionStrategy
+					((Slave) node).setRetentionStrategy(new RetentionStrategy.Always());
+
+					// reserved before it is registered, so the queue never gets to see it free
+					SubSlaveReservations.get().reserve(node.getNodeName(), nodeName, executors);
+
+					iterator.remove();
+					assigned.put(node, new Entry(node.getNodeName(), slaveEntry.getRole()));
+				}
+			}
+
+			if (assigned.size() != wanted) {
+				logger.warning(MessageFormat.format("Provisioning failed to fullfill request, gave us {0} nodes instead of {1}", assigned.size(),
+						wanted));
+				throw new CompoundingException(MessageFormat.format(
+						"Some provisioning failed, see log above. Error deploying label-atom: {0} and roles {1}", labelAtom, getRoles()));
+			}
+
+			return new ArrayList<Entry>(assigned.values());
+		}
+
+		/**
+		 * @return assigned nodes not yet added to {@link Jenkins}, sub-slaves from {@link SubSlavePool} are registered already
+		 */
+		private synchronized List<Node> getUnregistered() {
+			if (aborted) {
+				throw new CancellationException("Provisioning of label atom " + labelAtom + " was aborted");
+			}
+
+			Jenkins jenkins = Jenkins.getInstance();
+			List<Node> result = new ArrayList<Node>();
+
+			for (Node node : assigned.keySet()) {
+				if (jenkins.getNode(node.getNodeName()) != node) {
+					result.add(node);
+				}
+			}
+
+			return result;
+		}
+
+		/**
+		 * @return names of the nodes delivered or assigned to this group
+		 */
+		private synchronized List<String> getNodeNames() {
+			List<String> result = new ArrayList<String>();
+
+			for (Node node : delivered) {
+				result.add(node.getNodeName());
+			}
+			for (Node node : assigned.keySet()) {
+				result.add(node.getNodeName());
+			}
+
+			return result;
+		}
+
+		/**
+		 * Stops provisioning and gets rid of everything this group has got so far
+		 */
+		private void abort() {
+			List<Node> toDispose;
+			List<Entry> toCleanup = new ArrayList<Entry>();
+			Map<Node, Entry> toRelease;
+			List<Map.Entry<ListenableFuture<Node>, Future<Node>>> inFlight;
+
+			// see CompoundAssembly#register(List)
+			synchronized (CompoundAssembly.this) {
+				synchronized (this) {
+					if (aborted) {
+						return;
+					}
+					aborted = true;
+
+					toDispose = new ArrayList<Node>(delivered);
+					delivered.clear();
+					toRelease = new LinkedHashMap<Node, Entry>(assigned);
+					assigned.clear();
+					inFlight = new ArrayList<Map.Entry<ListenableFuture<Node>, Future<Node>>>(pending.entrySet());
+					pending.clear();
+				}
+			}
+
+			Jenkins jenkins = Jenkins.getInstance();
+
+			// only registered sub-slaves can be found by name, see CompoundCloud#cleanup(String, Collection)
+			for (Map.Entry<Node, Entry> node : toRelease.entrySet()) {
+				if (jenkins.getNode(node.getKey().getNodeName()) == node.getKey()) {
+					toCleanup.add(node.getValue());
+				} else {
+					SubSlaveReservations.get().release(node.getKey().getNodeName(), nodeName);
+					toDispose.add(node.getKey());
+				}
+			}
+
+			result.cancel(false);
+
+			for (Map.Entry<ListenableFuture<Node>, Future<Node>> future : inFlight) {
+				if (future.getKey().cancel(false)) {
+					disposeWhenReady(future.getValue());
+				}
+			}
+
+			for (Node node : toDispose) {
+				dispose(node);
+			}
+
+			CompoundCloud.cleanup(nodeName, toCleanup);
+		}
+
+		private String getRoles() {
+			List<String> roles = new ArrayList<String>();
+			for (SlaveEntry slaveEntry : slaveEntries) {
+				roles.add(slaveEntry.getRole());
+			}
+			return StringUtils.join(roles, ", ");
+		}
+	}
+
+	/**
+	 * Terminates a node the backend is still provisioning for us as soon as it materialises
+	 *
+	 * @param future
+	 *            of the node
+	 */
+	private void disposeWhenReady(Future<Node> future) {
+		Futures.addCallback(executor.listen(future), new FutureCallback<Node>() {
+			@Override
+			public void onSuccess(Node node) {
+				if (node != null) {
+					logger.info("Terminating " + node.getNodeName() + " provisioned for aborted " + nodeName);
+					CompoundCloud.dispose(node, nodeName);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// nothing to dispose
+			}
+		}, executor.getService());
+	}
+
+	/**
+	 * Waits for all the node futures, no matter if they succeed
+	 */
+	private static final AsyncFunction<List<ListenableFuture<Node>>, List<Node>> WAIT_ALL = new AsyncFunction<List<ListenableFuture<Node>>, List<Node>>() {
+		@Override
+		public ListenableFuture<List<Node>> apply(List<ListenableFuture<Node>> input) {
+			return Futures.successfulAsList(input);
+		}
+	};
+}
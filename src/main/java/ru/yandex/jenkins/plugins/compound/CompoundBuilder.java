@@ -20,6 +20,7 @@ import hudson.tasks.Builder;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -56,13 +57,14 @@ public class CompoundBuilder extends Builder {
 	 * @param build
 	 * @param launcher
 	 * @param listener
+	 * @param compoundSlave
 	 * @param slave
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private String prepareEnvironment(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, Slave slave) throws IOException, InterruptedException {
+	private String prepareEnvironment(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, CompoundSlave compoundSlave, Slave slave) throws IOException, InterruptedException {
 		WorkspaceList workspaceList = slave.getComputer().getWorkspaceList();
-		Lease workspaceLease = workspaceList.allocate(slave.getWorkspaceFor((TopLevelItem) (build.getProject())), build);
+		Lease workspaceLease = workspaceList.allocate(compoundSlave.getWorkspaceFor(slave, (TopLevelItem) (build.getProject())), build);
 
 		String workspace = workspaceLease.path.getRemote();
 		log(listener, "Provisioning workspace " + workspace + " on " + slave.getDisplayName());
@@ -105,20 +107,21 @@ public class CompoundBuilder extends Builder {
 				boolean result = true;
 
 				if (!slaves.isEmpty() && !role.equals("ROOT")) {
-					int slaveNumber = 0;
+					// we run for slave with given number or any slave if number is 0
+					List<Slave> targets = slaves;
 
-					for (Slave slave: slaves) {
-						slaveNumber ++;
-
-						// we run for slave with given number or any slave if number is 0
-						if (slaveNumber != number && number != 0) {
-							log(listener, "This slave " + slave.getDisplayName() + " is number "+ slaveNumber + ", but we seek " + number);
-							continue;
+					if (number != 0) {
+						Slave numbered = compoundSlave.getTopology().getSlave(role, number);
+						if (numbered == null) {
+							log(listener, "Role " + role + " has only " + slaves.size() + " slaves, but we seek number " + number);
 						}
+						targets = numbered == null ? Collections.<Slave> emptyList() : Collections.singletonList(numbered);
+					}
 
+					for (Slave slave: targets) {
 						log(listener, "Got a separate slave " + slave.getDisplayName() + " for role " + role + " and number " + number);
 						log(listener, "Preparing workspace on slave " + slave.getDisplayName());
-						String workspace = prepareEnvironment(build, launcher, listener, slave);
+						String workspace = prepareEnvironment(build, launcher, listener, compoundSlave, slave);
 
 						log(listener, "Running actual sub-builder.");
 						actualLauncher = new Launcher.RemoteLauncher(listener, slave.getChannel(), slave.getComputer().isUnix());
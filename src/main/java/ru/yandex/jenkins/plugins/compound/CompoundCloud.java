@@ -1,9 +1,7 @@
 package ru.yandex.jenkins.plugins.compound;
 
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor;
-import hudson.model.Descriptor.FormException;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Slave;
@@ -13,32 +11,39 @@ import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.NodeProvisioner.PlannedNode;
 import hudson.slaves.AbstractCloudImpl;
-import hudson.slaves.RetentionStrategy;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.LogTaskListener;
 
-import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import jedi.functional.Filter;
 import jedi.functional.FunctionalPrimitives;
-import jedi.functional.Functor;
 import jenkins.model.Jenkins;
 
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import ru.yandex.jenkins.plugins.compound.BackendHealth.Breaker;
 import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
 import ru.yandex.jenkins.plugins.compound.CompoundSlave.DescriptorImpl;
 import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
@@ -52,6 +57,10 @@ public class CompoundCloud extends AbstractCloudImpl {
 	protected final int retryTimeout;
 	protected final AtomicInteger nodesProvisioned;
 	protected final List<? extends ConfigurationEntry> configuration;
+	protected final int maxSubSlaves;
+	protected final List<LabelBudget> budgets;
+	protected transient CompoundPool pool;
+	protected transient ConcurrentMap<String, AtomicInteger> inFlight;
 
 	private static final Logger logger = Logger.getLogger(CompoundCloud.class.getCanonicalName());
 
@@ -61,11 +70,17 @@ public class CompoundCloud extends AbstractCloudImpl {
 	 * @author pupssman
 	 */
 	public static class ConfigurationEntry {
+		public static final int DEFAULT_POOL_IDLE_MINUTES = 30;
+		public static final int DEFAULT_REUSE_IDLE_MINUTES = 10;
+
 		protected final LabelAtom labelAtom;
 		protected final List<SlaveEntry> entries;
-
-		// when happened last deployment problems with this config
-		long lastProblems = 0;
+		protected final int minPool;
+		protected final int maxPool;
+		protected final int poolIdleMinutes;
+		protected final int forecastLeadMinutes;
+		protected final int reuseBuilds;
+		protected final int reuseIdleMinutes;
 
 		/**
 		 * Describes a single sub-node kind within a {@link CompoundSlave}
@@ -76,6 +91,22 @@ public class CompoundCloud extends AbstractCloudImpl {
 			protected final String role;
 			protected final LabelAtom labelAtom;
 			protected final int number;
+			protected final int provisioningTimeout;
+			protected final int attempts;
+			protected final int executors;
+
+			/**
+			 * Initial batch request plus one per-instance request for what the backend failed to deliver
+			 */
+			public static final int DEFAULT_ATTEMPTS = 2;
+
+			public SlaveEntry(String role, String labelAtom, String number) {
+				this(role, labelAtom, number, "0", Integer.toString(DEFAULT_ATTEMPTS));
+			}
+
+			public SlaveEntry(String role, String labelAtom, String number, String provisioningTimeout, String attempts) {
+				this(role, labelAtom, number, provisioningTimeout, attempts, "0");
+			}
 
 			/**
 			 * @param role
@@ -84,19 +115,29 @@ public class CompoundCloud extends AbstractCloudImpl {
 			 *            will be used to deploy sub-slave in {@link CompoundCloud#backendCloud}
 			 * @param number
 			 *            of the copies
+			 * @param provisioningTimeout
+			 *            seconds the backend is given to deliver the sub-slaves, <b>0</b> for no deadline
+			 * @param attempts
+			 *            how many times the backend is asked for the sub-slaves it failed to deliver before the whole compound fails
+			 * @param executors
+			 *            executors of a sub-slave the compound reserves, so that other compounds can share the rest, see
+			 *            {@link SubSlaveReservations}; <b>0</b> reserves the whole sub-slave
 			 */
 			@DataBoundConstructor
-			public SlaveEntry(String role, String labelAtom, String number) {
+			public SlaveEntry(String role, String labelAtom, String number, String provisioningTimeout, String attempts, String executors) {
 				this.role = role;
 				this.labelAtom = new LabelAtom(labelAtom);
 				this.number = Integer.parseInt(number);
+				this.provisioningTimeout = Integer.parseInt(provisioningTimeout);
+				this.attempts = Integer.parseInt(attempts);
+				this.executors = StringUtils.isBlank(executors) ? SubSlaveReservations.WHOLE : Math.max(0, Integer.parseInt(executors));
 			}
 
 			public String getRole() {
 				return role;
 			}
 			
-			private LabelAtom getLabelAtomForProvisioning() {
+			LabelAtom getLabelAtomForProvisioning() {
 				if(!StringUtils.isEmpty(labelAtom.getName())) {
 					return labelAtom;
 				} else {
@@ -112,12 +153,71 @@ public class CompoundCloud extends AbstractCloudImpl {
 			public int getNumber() {
 				return number;
 			}
+
+			public int getProvisioningTimeout() {
+				return provisioningTimeout;
+			}
+
+			/**
+			 * @return attempt budget; configurations saved before it was introduced get {@link #DEFAULT_ATTEMPTS}
+			 */
+			public int getAttempts() {
+				return attempts > 0 ? attempts : DEFAULT_ATTEMPTS;
+			}
+
+			/**
+			 * @return executors reserved per compound, {@link SubSlaveReservations#WHOLE} if sub-slaves are not shared
+			 */
+			public int getExecutors() {
+				return executors;
+			}
 		}
 
-		@DataBoundConstructor
 		public ConfigurationEntry(String labelAtom, List<SlaveEntry> entries) {
+			this(labelAtom, entries, "0", "0", Integer.toString(DEFAULT_POOL_IDLE_MINUTES));
+		}
+
+		public ConfigurationEntry(String labelAtom, List<SlaveEntry> entries, String minPool, String maxPool, String poolIdleMinutes) {
+			this(labelAtom, entries, minPool, maxPool, poolIdleMinutes, "0");
+		}
+
+		public ConfigurationEntry(String labelAtom, List<SlaveEntry> entries, String minPool, String maxPool, String poolIdleMinutes,
+				String forecastLeadMinutes) {
+			this(labelAtom, entries, minPool, maxPool, poolIdleMinutes, forecastLeadMinutes, "0", "0");
+		}
+
+		/**
+		 * @param labelAtom
+		 *            of the deployed {@link CompoundSlave}
+		 * @param entries
+		 *            sub-nodes of the deployed {@link CompoundSlave}
+		 * @param minPool
+		 *            number of pre-assembled compounds to keep ready in {@link CompoundPool}
+		 * @param maxPool
+		 *            upper bound for the pool size; <b>0</b> disables the pool
+		 * @param poolIdleMinutes
+		 *            how long a pooled compound above <b>minPool</b> may stay unused before it is torn down, {@link #DEFAULT_POOL_IDLE_MINUTES}
+		 *            if blank; <b>0</b> keeps them until the configuration goes
+		 * @param forecastLeadMinutes
+		 *            compounds {@link DemandHistory} predicts to be requested within this many minutes are pre-assembled into the pool, up to
+		 *            <b>maxPool</b>; <b>0</b> disables forecasting
+		 * @param reuseBuilds
+		 *            number of builds a compound serves before it is torn down, see {@link CompoundRetentionStrategy}; <b>0</b> or <b>1</b> for
+		 *            single-use compounds
+		 * @param reuseIdleMinutes
+		 *            how long a reusable compound may stay idle between builds
+		 */
+		@DataBoundConstructor
+		public ConfigurationEntry(String labelAtom, List<SlaveEntry> entries, String minPool, String maxPool, String poolIdleMinutes,
+				String forecastLeadMinutes, String reuseBuilds, String reuseIdleMinutes) {
 			this.entries = entries;
 			this.labelAtom = new LabelAtom(labelAtom);
+			this.minPool = Integer.parseInt(minPool);
+			this.maxPool = Math.max(this.minPool, Integer.parseInt(maxPool));
+			this.poolIdleMinutes = StringUtils.isBlank(poolIdleMinutes) ? DEFAULT_POOL_IDLE_MINUTES : Integer.parseInt(poolIdleMinutes);
+			this.forecastLeadMinutes = StringUtils.isBlank(forecastLeadMinutes) ? 0 : Integer.parseInt(forecastLeadMinutes);
+			this.reuseBuilds = StringUtils.isBlank(reuseBuilds) ? 0 : Integer.parseInt(reuseBuilds);
+			this.reuseIdleMinutes = StringUtils.isBlank(reuseIdleMinutes) ? 0 : Integer.parseInt(reuseIdleMinutes);
 		}
 
 		public LabelAtom getLabelAtom() {
@@ -127,6 +227,99 @@ public class CompoundCloud extends AbstractCloudImpl {
 		public List<SlaveEntry> getEntries() {
 			return entries;
 		}
+
+		public int getMinPool() {
+			return minPool;
+		}
+
+		public int getMaxPool() {
+			return maxPool;
+		}
+
+		public int getPoolIdleMinutes() {
+			return poolIdleMinutes;
+		}
+
+		public int getForecastLeadMinutes() {
+			return forecastLeadMinutes;
+		}
+
+		public boolean isPooled() {
+			return maxPool > 0;
+		}
+
+		public boolean isForecasted() {
+			return isPooled() && forecastLeadMinutes > 0;
+		}
+
+		public int getReuseBuilds() {
+			return reuseBuilds;
+		}
+
+		/**
+		 * @return idle timeout of reusable compounds; configurations without one get {@link #DEFAULT_REUSE_IDLE_MINUTES}
+		 */
+		public int getReuseIdleMinutes() {
+			return reuseIdleMinutes > 0 ? reuseIdleMinutes : DEFAULT_REUSE_IDLE_MINUTES;
+		}
+
+		/**
+		 * @return whether compounds of this configuration serve more than one build
+		 */
+		public boolean isReusable() {
+			return reuseBuilds > 1;
+		}
+
+		/**
+		 * @return total number of sub-slaves in a compound of this configuration
+		 */
+		public int getWeight() {
+			int result = 0;
+			for (SlaveEntry entry : entries) {
+				result += entry.getNumber();
+			}
+			return result;
+		}
+
+		/**
+		 * @param backendLabel
+		 *            to count
+		 * @return number of sub-slaves provisioned with the given label in a compound of this configuration
+		 */
+		public int getWeight(String backendLabel) {
+			int result = 0;
+			for (SlaveEntry entry : entries) {
+				if (entry.getLabelAtomForProvisioning().getName().equals(backendLabel)) {
+					result += entry.getNumber();
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Limits the number of sub-slaves with a given backend label that compounds of a {@link CompoundCloud} may hold at once, counting in-flight
+	 * and pooled ones
+	 * 
+	 * @author pupssman
+	 */
+	public static class LabelBudget {
+		protected final LabelAtom labelAtom;
+		protected final int maxSubSlaves;
+
+		@DataBoundConstructor
+		public LabelBudget(String labelAtom, String maxSubSlaves) {
+			this.labelAtom = new LabelAtom(labelAtom);
+			this.maxSubSlaves = Integer.parseInt(maxSubSlaves);
+		}
+
+		public LabelAtom getLabelAtom() {
+			return labelAtom;
+		}
+
+		public int getMaxSubSlaves() {
+			return maxSubSlaves;
+		}
 	}
 
 	/**
@@ -136,15 +329,33 @@ public class CompoundCloud extends AbstractCloudImpl {
 	 * 
 	 * @author dchr
 	 */
-	@DataBoundConstructor
 	public CompoundCloud(String name, String maxInstances, String retryTimeout, List<ConfigurationEntry> configuration) {
 		this(name, maxInstances, configuration, retryTimeout);
 	}
-	
+
+	/**
+	 * @param maxSubSlaves
+	 *            limit of sub-slaves held by all the compounds of this cloud, <b>0</b> for no limit
+	 * @param budgets
+	 *            limits of sub-slaves per backend label
+	 */
+	@DataBoundConstructor
+	public CompoundCloud(String name, String maxInstances, String retryTimeout, String maxSubSlaves, List<ConfigurationEntry> configuration,
+			List<LabelBudget> budgets) {
+		this(name, maxInstances, configuration, retryTimeout, maxSubSlaves, budgets);
+	}
+
 	public CompoundCloud(String name, String maxInstances, List<? extends ConfigurationEntry> configuration, String retryTimeout) {
+		this(name, maxInstances, configuration, retryTimeout, "0", new ArrayList<LabelBudget>());
+	}
+
+	public CompoundCloud(String name, String maxInstances, List<? extends ConfigurationEntry> configuration, String retryTimeout,
+			String maxSubSlaves, List<LabelBudget> budgets) {
 		super(name, maxInstances);
 		this.configuration = configuration;
 		this.retryTimeout = Integer.parseInt(retryTimeout);
+		this.maxSubSlaves = StringUtils.isBlank(maxSubSlaves) ? 0 : Integer.parseInt(maxSubSlaves);
+		this.budgets = budgets == null ? new ArrayList<LabelBudget>() : budgets;
 
 		Cloud oldMe = Jenkins.getInstance().getCloud(this.name);
 
@@ -154,197 +365,460 @@ public class CompoundCloud extends AbstractCloudImpl {
 		// TODO: invent something good about this
 		if (oldMe instanceof CompoundCloud) {
 			this.nodesProvisioned = new AtomicInteger(((CompoundCloud) oldMe).getNodesProvisioned().get());
+			this.pool = ((CompoundCloud) oldMe).getPool();
+			this.inFlight = ((CompoundCloud) oldMe).inFlight;
 		} else {
 			this.nodesProvisioned = new AtomicInteger(0);
+			this.pool = new CompoundPool();
+			this.inFlight = new ConcurrentHashMap<String, AtomicInteger>();
 		}
 	}
 
+	protected Object readResolve() {
+		if (pool == null) {
+			pool = new CompoundPool();
+		}
+		if (inFlight == null) {
+			inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+		}
+		return this;
+	}
+
 	@Override
 	public Collection<PlannedNode> provision(final Label label, int excessWorkload) {
 		List<PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
 
-		final ConfigurationEntry entry = FunctionalPrimitives.firstOrDefault(configuration, new Filter<ConfigurationEntry>() {
+		final ConfigurationEntry entry = getConfigurationEntry(label);
+
+		if (entry == null) {
+			logger.warning(MessageFormat.format("Failed to deploy label {0} because no configuration found.", label));
+			return result;
+		}
+
+		int wanted = Math.max(excessWorkload, 1);
+
+		if (entry.isPooled()) {
+			List<CompoundSlave> stale = new ArrayList<CompoundSlave>();
+
+			// pooled compounds are already accounted for in the capacity
+			while (result.size() < wanted) {
+				CompoundSlave pooled = getPool().take(entry, stale);
+				if (pooled == null) {
+					break;
+				}
+
+				logger.info(MessageFormat.format("Handing out pre-assembled {0} for label {1}", pooled.getNodeName(), label));
+				pooled.setTimeline(new ProvisioningTimeline(System.currentTimeMillis(), true));
+				result.add(new PlannedNode(pooled.getNodeName(), Futures.<Node> immediateFuture(pooled), 1));
+			}
+
+			discard(stale);
+		}
+
+		if (result.size() < wanted) {
+			int reserved = reserve(entry, wanted - result.size());
+
+			if (reserved < wanted - result.size()) {
+				// NodeProvisioner asks again for the remaining workload once capacity frees up
+				logger.info(MessageFormat.format("Requested to deploy {0} more compounds of label {1}, but capacity of {2} allows only {3}",
+						wanted - result.size(), label, name, reserved));
+			}
+
+			// pooled compounds do not touch the backends, so breakers are consulted only for the rest
+			int toPlan = reserved > 0 ? Math.min(reserved, getBackendAllowance(entry)) : 0;
+
+			if (reserved > 0 && toPlan <= 0) {
+				logger.warning(MessageFormat.format("Requested to deploy label {0}, but some of its backends had problems recently and are backing off.",
+						label.toString()));
+			}
+
+			getInFlight(entry).addAndGet(toPlan - reserved);
+
+			for (int i = 0; i < toPlan; i++) {
+				result.add(planSlave(entry));
+			}
+		}
+
+		logger.info(MessageFormat.format("Planned {0} compounds for label {1} (excess workload {2})", result.size(), label, excessWorkload));
+
+		// the workload asked for, not only what capacity and breakers let through, or the forecast could never exceed them
+		DemandHistory.get().record(entry.getLabelAtom().getName(), result.size(), wanted - result.size());
+
+		return result;
+	}
+
+	/**
+	 * @param label
+	 *            requested
+	 * @return first configuration deploying the label, <b>null</b> if none
+	 */
+	ConfigurationEntry getConfigurationEntry(final Label label) {
+		return FunctionalPrimitives.firstOrDefault(configuration, new Filter<ConfigurationEntry>() {
 			@Override
 			public Boolean execute(ConfigurationEntry value) {
 				return label.matches(Arrays.asList(value.getLabelAtom()));
 			}
 		}, null);
+	}
 
-		if (entry == null) {
-			logger.warning(MessageFormat.format("Failed to deploy label {0} because no configuration found.", label));
+	/**
+	 * Starts concurrent creation of a single {@link CompoundSlave}, capacity for which has been {@link #reserve(ConfigurationEntry, int)}d
+	 *
+	 * @param entry
+	 *            to deploy
+	 * @return node planned for the {@link NodeProvisioner}
+	 */
+	private PlannedNode planSlave(final ConfigurationEntry entry) {
+		final String nodeName = makeNodeName(entry, nodesProvisioned.incrementAndGet());
+
+		final ProvisioningTimeline timeline = new ProvisioningTimeline(System.currentTimeMillis(), false);
+		ListenableFuture<CompoundSlave> future = createSlave(entry, nodeName);
+
+		Futures.addCallback(future, new FutureCallback<CompoundSlave>() {
+			@Override
+			public void onSuccess(CompoundSlave result) {
+				getInFlight(entry).decrementAndGet();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				getInFlight(entry).decrementAndGet();
+			}
+		});
+
+		// we always set numExecutors to 1 since CompoundSlave's are single-use by design
+		// the timeline is attached before NodeProvisioner gets the node, so the launch is not missed
+		return new PlannedNode(nodeName, Futures.transform(future, new Function<CompoundSlave, Node>() {
+			@Override
+			public Node apply(CompoundSlave input) {
+				timeline.assembled();
+				input.setTimeline(timeline);
+				return input;
+			}
+		}), 1);
+	}
+
+	private AtomicInteger getInFlight(ConfigurationEntry entry) {
+		String key = entry.getLabelAtom().getName();
+		AtomicInteger result = inFlight.get(key);
+
+		if (result == null) {
+			inFlight.putIfAbsent(key, new AtomicInteger(0));
+			result = inFlight.get(key);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Takes capacity for compounds about to be assembled, so that concurrent requests can not overrun the limits together
+	 *
+	 * @param entry
+	 *            to deploy
+	 * @param wanted
+	 *            number of compounds
+	 * @return number of compounds that may be assembled, accounted as in flight
+	 */
+	private int reserve(ConfigurationEntry entry, int wanted) {
+		// inFlight outlives reconfiguration of the cloud, so it is the lock
+		synchronized (inFlight) {
+			int result = Math.min(wanted, getRemainingCapacity(entry));
+			getInFlight(entry).addAndGet(result);
 			return result;
 		}
+	}
+
+	/**
+	 * Counts compounds of this cloud that are registered in {@link Jenkins}, being created or sitting in the {@link CompoundPool}
+	 *
+	 * @return configuration label -&gt; number of compounds
+	 */
+	private Map<String, Integer> countCompounds() {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+
+		for (Map.Entry<String, AtomicInteger> entry : inFlight.entrySet()) {
+			add(result, entry.getKey(), entry.getValue().get());
+		}
+
+		if (configuration != null) {
+			for (ConfigurationEntry entry : configuration) {
+				add(result, entry.getLabelAtom().getName(), getPool().count(entry));
+			}
+		}
+
+		for (Node node : Jenkins.getInstance().getNodes()) {
+			if (node instanceof CompoundSlave && name.equals(((CompoundSlave) node).getCloudName())) {
+				// compounds are labelled with the label atom of their configuration, see CompoundAssembly
+				add(result, node.getLabelString(), 1);
+			}
+		}
+
+		return result;
+	}
 
-		if (configHasRecentErrors(entry)) {
-			logger.warning(MessageFormat.format(
-					"Requested to deploy label {0}, but corresponding config had problems recently. Will wait until timeout of {1} seconds to retry.",
-					label.toString(), retryTimeout));
+	private static void add(Map<String, Integer> counts, String key, int value) {
+		Integer old = counts.get(key);
+		counts.put(key, (old == null ? 0 : old) + value);
+	}
+
+	/**
+	 * @return number of compounds counting against {@link #getInstanceCap()}
+	 */
+	public int countInstances() {
+		int result = 0;
+
+		for (Integer count : countCompounds().values()) {
+			result += count;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Counts sub-slaves held by compounds of this cloud, live, in-flight and pooled ones, weighting compounds by their configuration.
+	 * 
+	 * Compounds of configurations that were removed since are not counted.
+	 *
+	 * @return backend label -&gt; number of sub-slaves
+	 */
+	public Map<String, Integer> countSubSlaves() {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+
+		if (configuration == null) {
 			return result;
 		}
 
-		final int nodeNumber = nodesProvisioned.incrementAndGet();
-		final String nodeName = MessageFormat.format("{0}-{2}_{1,number,#}", name, nodeNumber, entry.getLabelAtom());
+		Map<String, Integer> compounds = countCompounds();
 
-		Future<Node> future = Computer.threadPoolForRemoting.submit(new Callable<Node>() {
-			@Override
-			public Node call() throws Exception {
-				try {
-					return doCreateSlave(entry, nodeNumber, nodeName);
-				} catch (Exception e) {
-					configProvisioningFailed(entry);
-					throw e;
+		for (ConfigurationEntry entry : configuration) {
+			Integer count = compounds.get(entry.getLabelAtom().getName());
+
+			if (count != null) {
+				for (SlaveEntry slaveEntry : entry.getEntries()) {
+					add(result, slaveEntry.getLabelAtomForProvisioning().getName(), count * slaveEntry.getNumber());
 				}
 			}
-		});
+		}
 
-		// we always set numExecutors to 1 since CompoundSlave's are single-use by design
-		result.add(new PlannedNode(nodeName, future, 1));
+		return result;
+	}
+
+	/**
+	 * Checks the instance cap, {@link #getMaxSubSlaves()} and {@link #getBudgets()}; the latter two weight compounds by their sub-slaves.
+	 *
+	 * @param entry
+	 *            to deploy
+	 * @return how many more compounds of the configuration this cloud may create; instance cap of <b>0</b> means no limit
+	 */
+	private int getRemainingCapacity(ConfigurationEntry entry) {
+		int result = Integer.MAX_VALUE;
+
+		if (getInstanceCap() > 0 && getInstanceCap() != Integer.MAX_VALUE) {
+			result = Math.max(0, getInstanceCap() - countInstances());
+		}
+
+		if (maxSubSlaves <= 0 && getBudgets().isEmpty()) {
+			return result;
+		}
+
+		Map<String, Integer> usage = countSubSlaves();
+
+		if (maxSubSlaves > 0 && entry.getWeight() > 0) {
+			int total = 0;
+			for (Integer count : usage.values()) {
+				total += count;
+			}
+			result = Math.min(result, Math.max(0, maxSubSlaves - total) / entry.getWeight());
+		}
+
+		for (LabelBudget budget : getBudgets()) {
+			int weight = entry.getWeight(budget.getLabelAtom().getName());
+
+			if (weight > 0) {
+				Integer used = usage.get(budget.getLabelAtom().getName());
+				result = Math.min(result, Math.max(0, budget.getMaxSubSlaves() - (used == null ? 0 : used)) / weight);
+			}
+		}
 
 		return result;
 	}
 
-	protected CompoundSlave doCreateSlave(ConfigurationEntry entry, int nodeNumber, String nodeName) throws CompoundingException {
-		List<Entry> slaveEntries = new ArrayList<CompoundSlave.Entry>();
-		try {
-			List<Future<Collection<Entry>>> newSlaves = new ArrayList<Future<Collection<Entry>>>();
+	/**
+	 * Tops up the warm pool of every pooled {@link ConfigurationEntry} to its target or to the demand forecast by {@link DemandHistory}, and
+	 * tears down compounds that stayed idle for too long.
+	 *
+	 * Called periodically by {@link CompoundPoolMaintenance}.
+	 */
+	public void maintainPool() {
+		if (configuration == null) {
+			return;
+		}
 
-			logger.severe(MessageFormat.format("Starting provision compoundSlave {0}", nodeName));
+		discard(getPool().retain(configuration));
 
-			for (final SlaveEntry slaveEntry : entry.getEntries()) {
-				newSlaves.add(doProvisionSubSlave(slaveEntry));
+		for (final ConfigurationEntry entry : configuration) {
+			if (!entry.isPooled()) {
+				continue;
 			}
 
-			// cleanup flag. We can't do cleanup in catch because we need all futures to happen before cleanup
-			boolean cleanup = false;
+			int predicted = getPredictedDemand(entry);
+
+			discard(getPool().evictIdle(entry, predicted));
+
+			int deficit;
 
-			for (Future<Collection<Entry>> future : newSlaves) {
-				try {
-					slaveEntries.addAll(future.get());
-				} catch (InterruptedException e) {
-					logger.log(Level.SEVERE, "InterruptedException: " + e.getMessage(), e);
-					cleanup = true;
-				} catch (ExecutionException e) {
-					logger.log(Level.SEVERE, "ExecutionException: " + e.getMessage(), e);
-					cleanup = true;
+			synchronized (inFlight) {
+				// same lock as reserve(), so pool top-ups and provisioning do not overrun the capacity together
+				deficit = getPool().reserveDeficit(entry, getRemainingCapacity(entry), predicted);
+			}
+
+			if (deficit > 0) {
+				int allowed = Math.min(deficit, getBackendAllowance(entry));
+				for (int i = allowed; i < deficit; i++) {
+					getPool().assemblingFailed(entry);
 				}
+				deficit = allowed;
 			}
 
-			if (cleanup) {
-				logger.severe("Deployment failed, see log above. Cleaning up..");
-				cleanup(slaveEntries);
-				throw new CompoundingException("Deployment sub-slaves failed, see log");
+			for (int i = 0; i < deficit; i++) {
+				final String nodeName = makeNodeName(entry, nodesProvisioned.incrementAndGet());
+
+				logger.info(MessageFormat.format("Pre-assembling {0} for the pool of label {1}", nodeName, entry.getLabelAtom()));
+
+				Futures.addCallback(createSlave(entry, nodeName), new FutureCallback<CompoundSlave>() {
+					@Override
+					public void onSuccess(CompoundSlave result) {
+						getPool().offer(entry, result);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						logger.log(Level.WARNING, MessageFormat.format("Failed to pre-assemble {0}", nodeName), t);
+						getPool().assemblingFailed(entry);
+					}
+				});
 			}
-			return new CompoundSlave(nodeName, "Dynamically-created compound node for label " + entry.getLabelAtom(), entry.getLabelAtom().toString(),
-					slaveEntries);
-		} catch (FormException e) {
-			logger.log(Level.SEVERE, "Form exception: " + e.getMessage(), e);
-			cleanup(slaveEntries);
-			throw new CompoundingException("Configuration error: " + e.getMessage(), e);
-		} catch (IOException e) {
-			cleanup(slaveEntries);
-			logger.log(Level.SEVERE, "IO exception: " + e.getMessage(), e);
-			throw new CompoundingException("IO Exception: " + e.getMessage(), e);
 		}
 	}
 
-	private Future<Collection<Entry>> doProvisionSubSlave(final SlaveEntry slaveEntry) {
-		return Computer.threadPoolForRemoting.submit(new Callable<Collection<Entry>>() {
-			@Override
-			public Collection<Entry> call() throws Exception {
-				final Jenkins jenkins = Jenkins.getInstance();
-				List<PlannedNode> plannedNodes = new ArrayList<NodeProvisioner.PlannedNode>();
-
-				LabelAtom labelAtomForProvisioning = slaveEntry.getLabelAtomForProvisioning();
-				
-				Cloud cloud = getCloudToProvision(labelAtomForProvisioning);
-				
-				if (cloud == null) {
-					String message = MessageFormat.format("No cloud is capable of deploying requested label atom {0}", labelAtomForProvisioning);
-					logger.warning(message);
-					throw new CompoundingException(message);
-				}
-				
-				for (int i = 0; i < slaveEntry.getNumber(); i++) {
-					plannedNodes.addAll(cloud.provision(labelAtomForProvisioning, 1));
-				}
+	/**
+	 * @param entry
+	 *            pooled configuration
+	 * @return compounds expected to be requested within {@link ConfigurationEntry#getForecastLeadMinutes()}, <b>0</b> if not forecasted
+	 */
+	private int getPredictedDemand(ConfigurationEntry entry) {
+		if (!entry.isForecasted()) {
+			return 0;
+		}
+
+		double forecast = DemandHistory.get().forecast(entry.getLabelAtom().getName(),
+				TimeUnit.MINUTES.toMillis(entry.getForecastLeadMinutes()));
+
+		return (int) Math.round(forecast);
+	}
+
+	/**
+	 * Tears down compounds that never made it into {@link Jenkins}
+	 *
+	 * @param compounds
+	 */
+	private void discard(Collection<CompoundSlave> compounds) {
+		for (CompoundSlave compound : compounds) {
+			logger.info("Discarding pooled compound " + compound.getNodeName());
+			cleanup(compound.getNodeName(), compound.getEntries());
+		}
+	}
+
+	private String makeNodeName(ConfigurationEntry entry, int nodeNumber) {
+		return MessageFormat.format("{0}-{2}_{1,number,#}", name, nodeNumber, entry.getLabelAtom());
+	}
+
+	/**
+	 * Starts assembling a new {@link CompoundSlave} on {@link ProvisioningExecutor}
+	 *
+	 * @param entry
+	 *            to deploy
+	 * @param nodeName
+	 *            of the new compound
+	 * @return future of the compound, not yet added to {@link Jenkins}
+	 */
+	protected ListenableFuture<CompoundSlave> createSlave(ConfigurationEntry entry, String nodeName) {
+		return new CompoundAssembly(name, entry, nodeName, retryTimeout * 1000L).start();
+	}
+
+	/**
+	 * Gets rid of a provisioned node that has not been added to {@link Jenkins}, or parks it in {@link SubSlavePool} if it has been. Nodes
+	 * other compounds still hold shares of are left to them. Termination is left to {@link Teardown}; this method does not wait for it.
+	 *
+	 * @param node
+	 * @param compound
+	 *            name of the compound the node was provisioned for
+	 */
+	static void dispose(Node node, String compound) {
+		if (SubSlavePool.get().park(node, compound)) {
+			return;
+		}
+
+		if (!SubSlaveReservations.get().release(node.getNodeName(), compound)) {
+			return;
+		}
 
-				List<Entry> result = FunctionalPrimitives.map(plannedNodes, new Functor<PlannedNode, Entry>() {
+		final List<String> names = Collections.singletonList(node.getNodeName());
+
+		if (!(node instanceof AbstractCloudSlave)) {
+			SubSlaveJournal.get().forget(names);
+			return;
+		}
+
+		logger.info("Terminating surplus node " + node.getDisplayName());
+		Futures.addCallback(Teardown.get().start(Collections.singletonList(node), false, new LogTaskListener(logger, Level.WARNING)),
+				new FutureCallback<Integer>() {
 					@Override
-					public Entry execute(PlannedNode value) {
-						try {
-							Node node = value.future.get();
-
-							// Temporarily set the retention strategy to Always for the period of provisioning
-							// It will be reset at the moment of construction of the CompoundSlave
-							// See CompoundSlave ctor
-							// FIXME: make a better management for the RetentionStrategies
-							((Slave) node).setRetentionStrategy(new RetentionStrategy.Always());
-
-							jenkins.addNode(node);
-							return new Entry(node.getNodeName(), slaveEntry.getRole());
-						} catch (InterruptedException e) {
-							logger.log(Level.SEVERE, "Interrupted", e);
-							return null;
-						} catch (ExecutionException e) {
-							logger.log(Level.SEVERE, "Provisioning failed", e.getCause());
-							return null;
-						} catch (IOException e) {
-							logger.log(Level.SEVERE, "Failed to add Node to jenkins: " + e.getMessage(), e.getCause());
-							return null;
+					public void onSuccess(Integer failures) {
+						if (failures == 0) {
+							// delivered nodes that were never registered are journaled until they are gone
+							SubSlaveJournal.get().forget(names);
 						}
 					}
-				});
 
-				if (result.contains(null)) {
-					logger.warning("Provisioning failed, cleaning up");
-					cleanup(result);
-					throw new CompoundingException(MessageFormat.format(
-							"Some provisioning failed, see log above. Error deploying label-atom: {0} and role {1}", labelAtomForProvisioning,
-							slaveEntry.getRole()));
-				} else if (result.size() != slaveEntry.getNumber()) {
-					logger.warning(MessageFormat.format("Provisioning failed to fullfill request, gave us {0} nodes instead of {1}", result.size(),
-							slaveEntry.getNumber()));
-					cleanup(result);
-					throw new CompoundingException("Wrong number of nodes got provisioned, see log above.");
-				} else {
-					return result;
-				}
-			}
-		});
+					@Override
+					public void onFailure(Throwable t) {
+						// kept in the journal, torn down after a restart
+					}
+				});
 	}
 
 	/**
 	 * Cleans up all the created stuff in these entries.
 	 * 
 	 * Terminates {@link AbstractCloudSlave}s and removes all the others (in case {@link CompoundCloud#backendCloud} gives us regular slaves instead of
-	 * {@link AbstractCloudSlave})
+	 * {@link AbstractCloudSlave}). Nodes are torn down in parallel by {@link Teardown}; this method does not wait for it. Healthy nodes are
+	 * parked in {@link SubSlavePool} instead, if it is enabled. Sub-slaves other compounds still hold shares of are left to them.
 	 * 
+	 * @param compound
+	 *            name of the compound the entries belong to
 	 * @param entries
-	 * @throws InterruptedException
-	 * @throws IOException
 	 */
-	private void cleanup(Collection<Entry> entries) {
+	static void cleanup(String compound, Collection<Entry> entries) {
 		Jenkins jenkins = Jenkins.getInstance();
+		List<Node> nodes = new ArrayList<Node>();
+
 		for (Entry entry : entries) {
 			if (entry != null) {
 				Node node = jenkins.getNode(entry.getName());
-				if (node != null) {
-					try {
-						if (node instanceof AbstractCloudSlave) {
-							logger.warning("Terminating CloudSlave " + node.getDisplayName());
-							((AbstractCloudSlave) node).terminate();
-						} else {
-							logger.warning("Removing node " + node.getDisplayName());
-							jenkins.removeNode(node);
-						}
-					} catch (IOException e) {
-						logger.log(Level.WARNING, "Cleanup failed for " + node.getDisplayName(), e);
-					} catch (InterruptedException e) {
-						logger.log(Level.WARNING, "Cleanup failed for " + node.getDisplayName(), e);
-					}
+				if (node == null || SubSlavePool.get().park(node, compound)) {
+					continue;
+				}
+				// torn down right away, so not handed back to the queue
+				if (SubSlaveReservations.get().release(node.getNodeName(), compound)) {
+					nodes.add(node);
 				}
 			}
 		}
+
+		if (!nodes.isEmpty()) {
+			Teardown.get().start(nodes, true, new LogTaskListener(logger, Level.WARNING));
+		}
 	}
 
 	@Override
@@ -360,12 +834,36 @@ public class CompoundCloud extends AbstractCloudImpl {
 		return false;
 	}
 
-	private void configProvisioningFailed(ConfigurationEntry configurationEntry) {
-		configurationEntry.lastProblems = System.currentTimeMillis();
-	}
+	/**
+	 * Consults {@link BackendHealth} breakers of the best backend for every sub-slave label of the configuration.
+	 *
+	 * No half-open probe is taken here: sub-slaves may come from {@link SubSlavePool} or from shares without asking any backend, so the probe is
+	 * taken by {@link CompoundAssembly} only when it actually makes a request.
+	 *
+	 * @param entry
+	 *            to deploy
+	 * @return <b>0</b> if some backend is backing off, <b>1</b> if some backend is about to be probed, unlimited otherwise
+	 */
+	private int getBackendAllowance(ConfigurationEntry entry) {
+		int result = Integer.MAX_VALUE;
+
+		for (SlaveEntry slaveEntry : entry.getEntries()) {
+			LabelAtom labelAtom = slaveEntry.getLabelAtomForProvisioning();
+			Cloud backend = getCloudToProvision(labelAtom);
 
-	private boolean configHasRecentErrors(ConfigurationEntry configurationEntry) {
-		return (System.currentTimeMillis() - configurationEntry.lastProblems) < retryTimeout * 1000;
+			// no backend at all is reported by the assembly itself
+			if (backend != null) {
+				Breaker breaker = BackendHealth.get().getBreaker(backend, labelAtom);
+				if (!breaker.isAvailable()) {
+					return 0;
+				}
+				if (breaker.getState() != BackendHealth.State.CLOSED) {
+					result = 1;
+				}
+			}
+		}
+
+		return result;
 	}
 
 	@Extension
@@ -405,6 +903,14 @@ public class CompoundCloud extends AbstractCloudImpl {
 			}
 		}
 
+		public FormValidation doCheckMaxSubSlaves(@QueryParameter String maxSubSlaves) {
+			if (maxSubSlaves.matches("\\d*")) {
+				return FormValidation.ok();
+			} else {
+				return FormValidation.error("Bad value: use number");
+			}
+		}
+
 		public FormValidation doCheckRetryTimeout(@QueryParameter String retryTimeout) {
 			if (retryTimeout.matches("\\d+")) {
 				return FormValidation.ok();
@@ -413,6 +919,46 @@ public class CompoundCloud extends AbstractCloudImpl {
 			}
 		}
 		
+		public FormValidation doCheckProvisioningTimeout(@QueryParameter String provisioningTimeout) {
+			return doCheckNumber(provisioningTimeout);
+		}
+
+		public FormValidation doCheckAttempts(@QueryParameter String attempts) {
+			if (attempts.matches("[1-9]\\d*")) {
+				return FormValidation.ok();
+			} else {
+				return FormValidation.error("Bad value: use positive number");
+			}
+		}
+
+		public FormValidation doCheckExecutors(@QueryParameter String executors) {
+			return doCheckNumber(executors);
+		}
+
+		public FormValidation doCheckMinPool(@QueryParameter String minPool) {
+			return doCheckNumber(minPool);
+		}
+
+		public FormValidation doCheckMaxPool(@QueryParameter String maxPool) {
+			return doCheckNumber(maxPool);
+		}
+
+		public FormValidation doCheckPoolIdleMinutes(@QueryParameter String poolIdleMinutes) {
+			return doCheckNumber(poolIdleMinutes);
+		}
+
+		public FormValidation doCheckForecastLeadMinutes(@QueryParameter String forecastLeadMinutes) {
+			return doCheckNumber(forecastLeadMinutes);
+		}
+
+		public FormValidation doCheckReuseBuilds(@QueryParameter String reuseBuilds) {
+			return doCheckNumber(reuseBuilds);
+		}
+
+		public FormValidation doCheckReuseIdleMinutes(@QueryParameter String reuseIdleMinutes) {
+			return doCheckNumber(reuseIdleMinutes);
+		}
+
 		public FormValidation doCheckNumber(@QueryParameter String number) {
 			if (number.matches("\\d+")) {
 				return FormValidation.ok();
@@ -434,6 +980,14 @@ public class CompoundCloud extends AbstractCloudImpl {
 		return configuration;
 	}
 
+	public int getMaxSubSlaves() {
+		return maxSubSlaves;
+	}
+
+	public List<LabelBudget> getBudgets() {
+		return budgets == null ? new ArrayList<LabelBudget>() : budgets;
+	}
+
 	public int getRetryTimeout() {
 		return retryTimeout;
 	}
@@ -441,14 +995,59 @@ public class CompoundCloud extends AbstractCloudImpl {
 	public AtomicInteger getNodesProvisioned() {
 		return nodesProvisioned;
 	}
+
+	public CompoundPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return pool occupancy for every pooled {@link ConfigurationEntry} of this cloud
+	 */
+	public List<CompoundPool.Status> getPoolStatus() {
+		List<CompoundPool.Status> result = new ArrayList<CompoundPool.Status>();
+
+		if (configuration != null) {
+			for (ConfigurationEntry entry : configuration) {
+				if (entry.isPooled()) {
+					result.add(getPool().getStatus(entry));
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return demand forecast for every forecasted {@link ConfigurationEntry} of this cloud
+	 */
+	public List<DemandHistory.Forecast> getForecasts() {
+		List<DemandHistory.Forecast> result = new ArrayList<DemandHistory.Forecast>();
+
+		if (configuration != null) {
+			for (ConfigurationEntry entry : configuration) {
+				if (entry.isForecasted()) {
+					result.add(DemandHistory.get().getForecast(entry.getLabelAtom().getName(), entry.getForecastLeadMinutes()));
+				}
+			}
+		}
+
+		return result;
+	}
 	
 	/**
 	 * Looks up a {@link Cloud} from {@link Jenkins} that is capable of deploying given {@link Label}
 	 * 
+	 * For a {@link LabelAtom} this is the best candidate according to {@link BackendCloudIndex#rank(LabelAtom)}
+	 * 
 	 * @param label to be deployed
 	 * @return <b>null</b> if no such cloud was found
 	 */
 	public static Cloud getCloudToProvision(Label label) {
+		if (label instanceof LabelAtom) {
+			List<Cloud> candidates = BackendCloudIndex.get().rank((LabelAtom) label);
+			return candidates.isEmpty() ? null : candidates.get(0);
+		}
+
 		for (Cloud cloud: Jenkins.getInstance().clouds) {
 			if (cloud.canProvision(label) && !(cloud instanceof CompoundCloud)) {
 				return cloud;
@@ -41,6 +41,20 @@ public class CompoundLauncher extends ComputerLauncher {
 
 	@Override
 	public void launch(SlaveComputer computer, final TaskListener listener) throws IOException, InterruptedException {
+		long started = System.currentTimeMillis();
+		boolean launched = false;
+
+		try {
+			launched = doLaunch(computer, listener);
+			if (launched && compoundSlave.getTimeline() != null) {
+				compoundSlave.getTimeline().launched();
+			}
+		} finally {
+			ProvisioningMetrics.get().record(ProvisioningMetrics.LAUNCH, compoundSlave.getLabelString(), null, started, launched);
+		}
+	}
+
+	private boolean doLaunch(SlaveComputer computer, final TaskListener listener) throws IOException, InterruptedException {
 		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
 
 		say(listener, compoundSlave.getNodeName() + " is about to launch right now");
@@ -87,6 +101,8 @@ public class CompoundLauncher extends ComputerLauncher {
 		} else {
 			say(listener, "Some slaves failed to come online, not launching root.");
 		}
+
+		return allSlavesLaunched;
 	}
 
 	private Logger getLogger() {
@@ -94,27 +110,29 @@ public class CompoundLauncher extends ComputerLauncher {
 	}
 
 	private Collection<Slave> getSlaves() {
-		List<Slave> result = new ArrayList<Slave>();
-
-		for (List<Slave> slaves : compoundSlave.getAllSlaves().values()) {
-			result.addAll(slaves);
-		}
-
-		return result;
+		return compoundSlave.getSubSlaves();
 	}
 
+	/**
+	 * Disconnects the sub-slaves along with the compound. They stay reserved for it, with the same shares, until it is terminated: a
+	 * reconnected compound gets them back as they were, see {@link CompoundSlave#enslave(Slave, CompoundSlave)}.
+	 */
 	@Override
 	public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
 		for (Slave slave : getSlaves()) {
-			CompoundSlave.free(slave);
-			slave.getLauncher().afterDisconnect(slave.getComputer(), listener);
+			// sub-slaves still shared by other compounds stay connected for them
+			if (SubSlaveReservations.get().getOwners(slave.getNodeName()).size() <= 1) {
+				slave.getLauncher().afterDisconnect(slave.getComputer(), listener);
+			}
 		}
 	}
 
 	@Override
 	public void beforeDisconnect(SlaveComputer computer, TaskListener listener) {
 		for (Slave slave : getSlaves()) {
-			slave.getLauncher().beforeDisconnect(slave.getComputer(), listener);
+			if (SubSlaveReservations.get().getOwners(slave.getNodeName()).size() <= 1) {
+				slave.getLauncher().beforeDisconnect(slave.getComputer(), listener);
+			}
 		}
 	}
 
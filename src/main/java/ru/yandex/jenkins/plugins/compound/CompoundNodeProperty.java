@@ -10,17 +10,21 @@ import java.text.MessageFormat;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.model.Node;
 import hudson.model.Slave;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
 
+import jenkins.model.Jenkins;
+
 /**
  * a `NodeProperty` that would contribute this node's environment
  * 
@@ -33,13 +37,48 @@ public class CompoundNodeProperty extends NodeProperty<CompoundSlave> {
 
 	private Map<String, String> values = null;
 
-	// Stored here instead of parent's .node because that one is transient
-	private final CompoundSlave compoundSlave;
+	// Stored here instead of parent's .node because that one is transient; a name, so the compound is not persisted inside itself again
+	private String compoundName;
+
+	/**
+	 * @deprecated persisted by older versions, migrated to {@link #compoundName} on load
+	 */
+	@Deprecated
+	private CompoundSlave compoundSlave;
+
+	private transient volatile CompoundSlave compound;
 
 	public CompoundNodeProperty(CompoundSlave compoundSlave) {
 		super();
 
-		this.compoundSlave = compoundSlave;
+		this.compoundName = compoundSlave.getNodeName();
+		this.compound = compoundSlave;
+	}
+
+	/**
+	 * Migrates properties persisted with the whole compound to its name
+	 */
+	protected Object readResolve() {
+		if (compoundName == null && compoundSlave != null) {
+			compoundName = compoundSlave.getNodeName();
+		}
+		compoundSlave = null;
+		return this;
+	}
+
+	private CompoundSlave getCompoundSlave() throws IOException {
+		CompoundSlave result = compound;
+
+		if (result == null) {
+			Node node = Jenkins.getInstance().getNode(compoundName);
+			if (!(node instanceof CompoundSlave)) {
+				throw new IOException("No compound slave " + compoundName + " found");
+			}
+			result = (CompoundSlave) node;
+			compound = result;
+		}
+
+		return result;
 	}
 
 	@Override
@@ -48,7 +87,7 @@ public class CompoundNodeProperty extends NodeProperty<CompoundSlave> {
 			try {
 				listener.getLogger().println("[compound-slave] No environment known - computing...");
 
-				values = computeValues(compoundSlave, listener);
+				values = computeValues(getCompoundSlave(), listener);
 			} catch (CompoundingException e) {
 				throw new IOException(e);
 			}
@@ -74,12 +113,13 @@ public class CompoundNodeProperty extends NodeProperty<CompoundSlave> {
 	 * @return
 	 * @throws CompoundingException if there was a problem with contacting sub-slaves
 	 */
-	private static Map<String, String> computeValues(CompoundSlave slave, TaskListener listener) throws CompoundingException {
+	static Map<String, String> computeValues(CompoundSlave slave, TaskListener listener) throws CompoundingException {
 		Map<String, String> values = new HashMap<String, String>();
 
-		for (String role: slave.getAllSlaves().keySet()) {
+		for (Map.Entry<String, List<Slave>> roleSlaves: slave.getAllSlaves().entrySet()) {
+			String role = roleSlaves.getKey();
 			int i = 0;
-			for (Slave subSlave: slave.getAllSlaves().get(role)) {
+			for (Slave subSlave: roleSlaves.getValue()) {
 				i++;
 
 				String v4_address = null;
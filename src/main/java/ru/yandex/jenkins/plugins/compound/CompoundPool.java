@@ -0,0 +1,382 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+
+/**
+ * Warm pool of pre-assembled {@link CompoundSlave}s, one bucket per {@link ConfigurationEntry}.
+ *
+ * Pooled compounds have all their sub-slaves provisioned, registered and enslaved, but are not added to {@link Jenkins} themselves until they are
+ * handed out by {@link CompoundCloud#provision(hudson.model.Label, int)}.
+ *
+ * The pool grows its target on misses (up to {@link ConfigurationEntry#getMaxPool()}) and shrinks back to {@link ConfigurationEntry#getMinPool()}
+ * by idle eviction.
+ *
+ * With a forecast lead time configured, the target is also raised to the demand {@link DemandHistory} predicts for the lead time. Compounds
+ * assembled only because of the forecast are counted as predicted hits when handed out and as predicted misses when evicted unused.
+ *
+ * The pool lives in memory only and does not survive a restart. The sub-slaves of pooled compounds are in {@link SubSlaveJournal}, so after a
+ * restart no compound plays with them and {@link CompoundReconciler} tears them down; the pool is then refilled from scratch.
+ *
+ * @author pupssman
+ */
+public class CompoundPool {
+	private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+	private static final class Slot {
+		private final CompoundSlave slave;
+		private final long readySince;
+		private final boolean predicted;
+
+		private Slot(CompoundSlave slave, boolean predicted) {
+			this.slave = slave;
+			this.readySince = System.currentTimeMillis();
+			this.predicted = predicted;
+		}
+	}
+
+	private static final class Bucket {
+		private final LinkedList<Slot> ready = new LinkedList<Slot>();
+		private int assembling = 0;
+		private int predictedAssembling = 0;
+		private int target = 0;
+		private long hits = 0;
+		private long misses = 0;
+		private long evictions = 0;
+		private long predictedHits = 0;
+		private long predictedMisses = 0;
+	}
+
+	private synchronized Bucket getBucket(ConfigurationEntry entry) {
+		String key = entry.getLabelAtom().getName();
+		Bucket bucket = buckets.get(key);
+
+		if (bucket == null) {
+			bucket = new Bucket();
+			bucket.target = entry.getMinPool();
+			buckets.put(key, bucket);
+		}
+
+		return bucket;
+	}
+
+	/**
+	 * Hands out a ready compound, if any.
+	 *
+	 * Compounds whose sub-slaves have vanished in the meanwhile are dropped and returned via <b>stale</b> for cleanup.
+	 *
+	 * @param entry
+	 *            to take a compound for
+	 * @param stale
+	 *            collects dead compounds found while looking for a live one
+	 * @return <b>null</b> if the pool is empty
+	 */
+	public synchronized CompoundSlave take(ConfigurationEntry entry, Collection<CompoundSlave> stale) {
+		Bucket bucket = getBucket(entry);
+
+		while (!bucket.ready.isEmpty()) {
+			Slot slot = bucket.ready.removeFirst();
+			CompoundSlave slave = slot.slave;
+
+			if (isIntact(slave)) {
+				bucket.hits++;
+				if (slot.predicted) {
+					bucket.predictedHits++;
+				}
+				return slave;
+			} else {
+				stale.add(slave);
+			}
+		}
+
+		bucket.misses++;
+		bucket.target = Math.min(entry.getMaxPool(), bucket.target + 1);
+		return null;
+	}
+
+	/**
+	 * Reserves slots for compounds to be assembled so that ready and assembling together reach the current target, or the predicted demand if
+	 * that is higher.
+	 *
+	 * @param entry
+	 *            to top up
+	 * @param capacity
+	 *            how many more compounds the cloud may create at all
+	 * @param predicted
+	 *            compounds expected to be requested within the forecast lead time
+	 * @return number of compounds the caller should start assembling
+	 */
+	public synchronized int reserveDeficit(ConfigurationEntry entry, int capacity, int predicted) {
+		Bucket bucket = getBucket(entry);
+
+		bucket.target = Math.max(entry.getMinPool(), Math.min(entry.getMaxPool(), bucket.target));
+
+		int effectiveTarget = Math.max(bucket.target, Math.min(entry.getMaxPool(), predicted));
+		int present = bucket.ready.size() + bucket.assembling;
+
+		int deficit = Math.min(capacity, Math.max(0, effectiveTarget - present));
+		bucket.assembling += deficit;
+
+		// whatever goes beyond the reactive target is there only because of the forecast
+		bucket.predictedAssembling += Math.min(deficit, Math.max(0, present + deficit - Math.max(bucket.target, present)));
+
+		return deficit;
+	}
+
+	public synchronized void offer(ConfigurationEntry entry, CompoundSlave slave) {
+		Bucket bucket = getBucket(entry);
+		bucket.assembling = Math.max(0, bucket.assembling - 1);
+
+		boolean predicted = bucket.predictedAssembling > 0;
+		if (predicted) {
+			bucket.predictedAssembling--;
+		}
+
+		bucket.ready.addLast(new Slot(slave, predicted));
+	}
+
+	public synchronized void assemblingFailed(ConfigurationEntry entry) {
+		Bucket bucket = getBucket(entry);
+		bucket.assembling = Math.max(0, bucket.assembling - 1);
+		bucket.predictedAssembling = Math.min(bucket.predictedAssembling, bucket.assembling);
+	}
+
+	/**
+	 * Removes compounds that stayed unused longer than {@link ConfigurationEntry#getPoolIdleMinutes()}, never going below
+	 * {@link ConfigurationEntry#getMinPool()} or the predicted demand.
+	 *
+	 * @param predicted
+	 *            compounds expected to be requested within the forecast lead time
+	 * @return compounds to be torn down by the caller
+	 */
+	public List<CompoundSlave> evictIdle(ConfigurationEntry entry, int predicted) {
+		return evictIdle(entry, predicted, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param now
+	 *            time idleness is measured up to
+	 * @see #evictIdle(ConfigurationEntry, int)
+	 */
+	public synchronized List<CompoundSlave> evictIdle(ConfigurationEntry entry, int predicted, long now) {
+		List<CompoundSlave> result = new ArrayList<CompoundSlave>();
+		Bucket bucket = getBucket(entry);
+
+		if (entry.getPoolIdleMinutes() <= 0) {
+			return result;
+		}
+
+		long deadline = now - entry.getPoolIdleMinutes() * 60000L;
+		int keep = Math.max(entry.getMinPool(), predicted);
+
+		Iterator<Slot> iterator = bucket.ready.iterator();
+		while (iterator.hasNext() && bucket.ready.size() > keep) {
+			Slot slot = iterator.next();
+			if (slot.readySince < deadline) {
+				iterator.remove();
+				bucket.evictions++;
+				if (slot.predicted) {
+					bucket.predictedMisses++;
+				}
+				bucket.target = Math.max(entry.getMinPool(), bucket.target - 1);
+				result.add(slot.slave);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Drops buckets of configurations that are no longer there
+	 *
+	 * @return compounds to be torn down by the caller
+	 */
+	public synchronized List<CompoundSlave> retain(Collection<? extends ConfigurationEntry> configuration) {
+		List<CompoundSlave> result = new ArrayList<CompoundSlave>();
+		List<String> labels = new ArrayList<String>();
+
+		for (ConfigurationEntry entry : configuration) {
+			if (entry.isPooled()) {
+				labels.add(entry.getLabelAtom().getName());
+			}
+		}
+
+		Iterator<Map.Entry<String, Bucket>> iterator = buckets.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Bucket> bucket = iterator.next();
+			if (!labels.contains(bucket.getKey())) {
+				for (Slot slot : bucket.getValue().ready) {
+					result.add(slot.slave);
+				}
+				iterator.remove();
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return compounds ready to be handed out, of all the configurations
+	 */
+	public synchronized List<CompoundSlave> getReady() {
+		List<CompoundSlave> result = new ArrayList<CompoundSlave>();
+
+		for (Bucket bucket : buckets.values()) {
+			for (Slot slot : bucket.ready) {
+				result.add(slot.slave);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return number of ready and assembling compounds across all buckets
+	 */
+	public synchronized int count() {
+		int result = 0;
+
+		for (Bucket bucket : buckets.values()) {
+			result += bucket.ready.size() + bucket.assembling;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return number of ready and assembling compounds of the configuration
+	 */
+	public synchronized int count(ConfigurationEntry entry) {
+		Bucket bucket = buckets.get(entry.getLabelAtom().getName());
+		return bucket == null ? 0 : bucket.ready.size() + bucket.assembling;
+	}
+
+	public synchronized Status getStatus(ConfigurationEntry entry) {
+		Bucket bucket = getBucket(entry);
+		return new Status(entry, bucket.ready.size(), bucket.assembling, bucket.target, bucket.hits, bucket.misses, bucket.evictions,
+				bucket.predictedHits, bucket.predictedMisses);
+	}
+
+	private static boolean isIntact(CompoundSlave slave) {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (CompoundSlave.Entry entry : slave.getEntries()) {
+			Node node = jenkins.getNode(entry.getName());
+			if (node == null || node.toComputer() == null || (node.toComputer().isOffline() && !node.toComputer().isConnecting())) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Occupancy gauges of a single pool bucket
+	 *
+	 * @author pupssman
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Status {
+		private final String label;
+		private final int ready;
+		private final int assembling;
+		private final int target;
+		private final int min;
+		private final int max;
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long predictedHits;
+		private final long predictedMisses;
+
+		private Status(ConfigurationEntry entry, int ready, int assembling, int target, long hits, long misses, long evictions, long predictedHits,
+				long predictedMisses) {
+			this.label = entry.getLabelAtom().getName();
+			this.min = entry.getMinPool();
+			this.max = entry.getMaxPool();
+			this.ready = ready;
+			this.assembling = assembling;
+			this.target = target;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.predictedHits = predictedHits;
+			this.predictedMisses = predictedMisses;
+		}
+
+		@Exported
+		public String getLabel() {
+			return label;
+		}
+
+		@Exported
+		public int getReady() {
+			return ready;
+		}
+
+		@Exported
+		public int getAssembling() {
+			return assembling;
+		}
+
+		@Exported
+		public int getTarget() {
+			return target;
+		}
+
+		@Exported
+		public int getMin() {
+			return min;
+		}
+
+		@Exported
+		public int getMax() {
+			return max;
+		}
+
+		@Exported
+		public long getHits() {
+			return hits;
+		}
+
+		@Exported
+		public long getMisses() {
+			return misses;
+		}
+
+		@Exported
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return compounds assembled because of the forecast that were handed out
+		 */
+		@Exported
+		public long getPredictedHits() {
+			return predictedHits;
+		}
+
+		/**
+		 * @return compounds assembled because of the forecast that were evicted unused
+		 */
+		@Exported
+		public long getPredictedMisses() {
+			return predictedMisses;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Periodically keeps warm pools of all {@link CompoundCloud}s topped up, see {@link CompoundPool}, rolls the {@link DemandHistory} over,
+ * evicts expired sub-slaves from the {@link SubSlavePool} and drops {@link ProvisioningMetrics} of configurations that are gone
+ *
+ * @author pupssman
+ */
+@Extension
+public class CompoundPoolMaintenance extends AsyncPeriodicWork {
+
+	public CompoundPoolMaintenance() {
+		super("Compound pool maintenance");
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		DemandHistory.get().tick();
+		SubSlavePool.get().evictExpired();
+		ProvisioningMetrics.get().retainConfigured();
+
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (cloud instanceof CompoundCloud) {
+				((CompoundCloud) cloud).maintainPool();
+			}
+		}
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit.MINUTES.toMillis(1);
+	}
+}
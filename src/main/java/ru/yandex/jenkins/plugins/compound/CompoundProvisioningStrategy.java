@@ -0,0 +1,116 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.LoadStatistics.LoadStatisticsSnapshot;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.slaves.NodeProvisioner.StrategyDecision;
+import hudson.slaves.NodeProvisioner.StrategyState;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+
+/**
+ * Provisions compounds for labels served by a {@link CompoundCloud} as soon as there is queue, without the load statistics smoothing of the
+ * default strategy.
+ *
+ * Demand is the queue length minus executors that are available, connecting or already planned and minus compounds being pre-assembled for the
+ * {@link CompoundPool}, so compounds in flight are never requested twice.
+ *
+ * @author pupssman
+ */
+@Extension(ordinal = 100)
+public class CompoundProvisioningStrategy extends NodeProvisioner.Strategy {
+	private static final Logger logger = Logger.getLogger(CompoundProvisioningStrategy.class.getCanonicalName());
+
+	@Override
+	public StrategyDecision apply(StrategyState state) {
+		Label label = state.getLabel();
+		List<CompoundCloud> clouds = getClouds(label);
+
+		if (clouds.isEmpty()) {
+			return StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+		}
+
+		LoadStatisticsSnapshot snapshot = state.getSnapshot();
+
+		int supply = snapshot.getAvailableExecutors() + snapshot.getConnectingExecutors() + state.getPlannedCapacitySnapshot()
+				+ state.getAdditionalPlannedCapacity();
+
+		for (CompoundCloud cloud : clouds) {
+			ConfigurationEntry entry = cloud.getConfigurationEntry(label);
+			if (entry != null && entry.isPooled()) {
+				// these will be handed out by provision() as soon as they are ready
+				supply += cloud.getPool().getStatus(entry).getAssembling();
+			}
+		}
+
+		int demand = snapshot.getQueueLength() - supply;
+
+		for (CompoundCloud cloud : clouds) {
+			if (demand <= 0) {
+				break;
+			}
+
+			Collection<PlannedNode> planned = cloud.provision(label, demand);
+			state.recordPendingLaunches(planned);
+
+			logger.fine(MessageFormat.format("Queue of {0} for label {1}: {2} executors on the way, {3} compounds planned by {4}",
+					snapshot.getQueueLength(), label, supply, planned.size(), cloud.name));
+
+			for (PlannedNode node : planned) {
+				demand -= node.numExecutors;
+			}
+		}
+
+		// compound labels are not served by other clouds, and the default strategy would only request them again
+		return StrategyDecision.PROVISIONING_COMPLETED;
+	}
+
+	/**
+	 * @return compound clouds capable of provisioning the label
+	 */
+	static List<CompoundCloud> getClouds(Label label) {
+		List<CompoundCloud> result = new ArrayList<CompoundCloud>();
+
+		if (label == null) {
+			return result;
+		}
+
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (cloud instanceof CompoundCloud && cloud.canProvision(label)) {
+				result.add((CompoundCloud) cloud);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Wakes the provisioner of a compound label up as soon as an item for it becomes buildable, instead of waiting for its next periodic run
+	 *
+	 * @author pupssman
+	 */
+	@Extension
+	public static class QueueWatcher extends QueueListener {
+		@Override
+		public void onEnterBuildable(BuildableItem item) {
+			Label label = item.getAssignedLabel();
+
+			if (!getClouds(label).isEmpty()) {
+				label.nodeProvisioner.suggestReviewNow();
+			}
+		}
+	}
+}
@@ -0,0 +1,460 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.Cloud;
+import hudson.util.LogTaskListener;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Brings compounds back in line with their sub-slaves once {@link Jenkins} has started.
+ *
+ * Reservations of the sub-slaves (see {@link SubSlaveReservations}) are restored as soon as the nodes are loaded, before the queue gets to them.
+ * Once {@link Jenkins} has started, all the sub-slaves of all the compounds are checked at once, at most {@link #getConcurrency()} at a time:
+ * offline ones are reconnected, or just waited for if the master can not launch them (e.g. JNLP ones reconnect by themselves), and given
+ * {@link #getConnectTimeoutSeconds()} to come online. Compounds whose sub-slaves are all online are kept; compounds with sub-slaves that are
+ * gone or dead are terminated.
+ *
+ * Sub-slaves in {@link SubSlaveJournal} that no compound plays with are leftovers of assemblies interrupted by the restart or of the
+ * {@link SubSlavePool}, and are torn down by {@link Teardown}, and so are the nodes backends delivered to those assemblies before they could
+ * register them.
+ *
+ * @author pupssman
+ */
+@ExportedBean
+public final class CompoundReconciler {
+	public static final int DEFAULT_CONCURRENCY = 8;
+	public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 300;
+
+	/**
+	 * Owner of the reservations of journaled sub-slaves between loading the nodes and reconciling them, see {@link SubSlaveReservations}
+	 */
+	public static final String OWNER = "compound reconciler";
+
+	private static final long AWAIT_POLL_MILLIS = 1000;
+
+	private static final Logger logger = Logger.getLogger(CompoundReconciler.class.getCanonicalName());
+
+	private static final CompoundReconciler INSTANCE = new CompoundReconciler();
+
+	private final ThreadPoolExecutor executor;
+	private final ListeningExecutorService service;
+
+	private volatile int connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+
+	private final AtomicLong reattached = new AtomicLong();
+	private final AtomicLong terminated = new AtomicLong();
+	private final AtomicLong orphans = new AtomicLong();
+	private final AtomicLong lastMillis = new AtomicLong();
+
+	private CompoundReconciler() {
+		executor = new ThreadPoolExecutor(DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("compound-reconcile-%d").setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
+		service = MoreExecutors.listeningDecorator(executor);
+	}
+
+	public static CompoundReconciler get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param connectTimeoutSeconds
+	 *            how long offline sub-slaves get to come back online
+	 */
+	public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+		this.connectTimeoutSeconds = connectTimeoutSeconds;
+	}
+
+	/**
+	 * Restores the reservations of the sub-slaves of the compounds loaded with {@link Jenkins}; they are not persisted. Journaled sub-slaves are
+	 * reserved as well, under {@link #OWNER}, until {@link #start()} tells the leftovers of interrupted assemblies and of the
+	 * {@link SubSlavePool} from the sub-slaves of compounds.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void restoreReservations() {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (Node node : jenkins.getNodes()) {
+			if (node instanceof CompoundSlave) {
+				reserve((CompoundSlave) node);
+			}
+		}
+
+		for (String name : SubSlaveJournal.get().getSubSlaves()) {
+			Node node = jenkins.getNode(name);
+
+			if (node != null && !(node instanceof CompoundSlave)) {
+				SubSlaveReservations.get().reserve(name, OWNER, SubSlaveReservations.WHOLE);
+				if (node.toComputer() != null) {
+					node.toComputer().setAcceptingTasks(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reconciles the compounds loaded with {@link Jenkins} without holding up its startup
+	 */
+	@Initializer(after = InitMilestone.COMPLETED)
+	public static void reconcileOnStartup() {
+		get().start();
+	}
+
+	/**
+	 * Starts reconciling all the compounds known to {@link Jenkins}
+	 *
+	 * @return future completing when all the compounds are either reattached or terminated
+	 */
+	public ListenableFuture<Void> start() {
+		final long started = System.currentTimeMillis();
+		Jenkins jenkins = Jenkins.getInstance();
+
+		List<CompoundSlave> compounds = new ArrayList<CompoundSlave>();
+		Set<String> referenced = new HashSet<String>();
+
+		for (Node node : jenkins.getNodes()) {
+			if (node instanceof CompoundSlave) {
+				CompoundSlave compound = (CompoundSlave) node;
+				compounds.add(compound);
+
+				for (List<String> names : compound.getSubSlaveNames().values()) {
+					referenced.addAll(names);
+				}
+			}
+		}
+
+		List<ListenableFuture<Boolean>> outcomes = new ArrayList<ListenableFuture<Boolean>>();
+
+		// delivered nodes registered right before the restart are journaled by name as well, and reconciled with the others below
+		final List<Node> pending = new ArrayList<Node>();
+		List<String> registered = new ArrayList<String>();
+		for (Node node : SubSlaveJournal.get().getPending()) {
+			if (jenkins.getNode(node.getNodeName()) == null) {
+				pending.add(node);
+			} else {
+				registered.add(node.getNodeName());
+			}
+		}
+		SubSlaveJournal.get().forget(registered);
+
+		if (!pending.isEmpty()) {
+			logger.info(MessageFormat.format("Tearing down {0} sub-slaves delivered to assemblies interrupted by the restart", pending.size()));
+			orphans.addAndGet(pending.size());
+
+			outcomes.add(Futures.transform(Teardown.get().start(pending, false, new LogTaskListener(logger, Level.WARNING)),
+					new Function<Integer, Boolean>() {
+						@Override
+						public Boolean apply(Integer failures) {
+							if (failures == 0) {
+								SubSlaveJournal.get().forget(getNames(pending));
+							}
+							return failures == 0;
+						}
+					}));
+		}
+
+		List<Node> leftovers = findOrphans(referenced);
+
+		// the rest of the journaled sub-slaves belong to compounds, orphans stay held until they are gone
+		for (String name : SubSlaveJournal.get().getSubSlaves()) {
+			if (!leftovers.contains(jenkins.getNode(name))) {
+				SubSlaveReservations.get().release(name, OWNER);
+			}
+		}
+
+		if (!leftovers.isEmpty()) {
+			logger.info(MessageFormat.format("Tearing down {0} sub-slaves no compound plays with", leftovers.size()));
+			orphans.addAndGet(leftovers.size());
+
+			outcomes.add(Futures.transform(Teardown.get().start(leftovers, true, new LogTaskListener(logger, Level.WARNING)),
+					new Function<Integer, Boolean>() {
+						@Override
+						public Boolean apply(Integer failures) {
+							return failures == 0;
+						}
+					}));
+		}
+
+		// sub-slaves shared by several compounds are checked once
+		Map<String, ListenableFuture<Boolean>> checks = new HashMap<String, ListenableFuture<Boolean>>();
+
+		for (CompoundSlave compound : compounds) {
+			outcomes.add(reconcile(compound, checks));
+		}
+
+		final int total = compounds.size();
+
+		return Futures.transform(Futures.successfulAsList(outcomes), new AsyncFunction<List<Boolean>, Void>() {
+			@Override
+			public ListenableFuture<Void> apply(List<Boolean> input) {
+				long elapsed = System.currentTimeMillis() - started;
+				lastMillis.set(elapsed);
+
+				SubSlaveJournal.get().compact();
+
+				if (total > 0) {
+					logger.info(MessageFormat.format("Reconciled {0} compounds in {1} ms", total, elapsed));
+				}
+
+				return Futures.immediateFuture(null);
+			}
+		});
+	}
+
+	/**
+	 * @param checks
+	 *            sub-slave name -&gt; future of its health, shared between the compounds
+	 * @return future of whether the compound was kept
+	 */
+	private ListenableFuture<Boolean> reconcile(final CompoundSlave compound, Map<String, ListenableFuture<Boolean>> checks) {
+		Jenkins jenkins = Jenkins.getInstance();
+		List<ListenableFuture<Boolean>> subSlaves = new ArrayList<ListenableFuture<Boolean>>();
+
+		for (List<String> names : compound.getSubSlaveNames().values()) {
+			for (String name : names) {
+				Node node = jenkins.getNode(name);
+
+				if (!(node instanceof Slave)) {
+					logger.warning(MessageFormat.format("Sub-slave {0} of {1} is gone", name, compound.getNodeName()));
+					return terminate(compound);
+				}
+
+				ListenableFuture<Boolean> check = checks.get(name);
+				if (check == null) {
+					check = check((Slave) node);
+					checks.put(name, check);
+				}
+				subSlaves.add(check);
+			}
+		}
+
+		return Futures.transform(Futures.successfulAsList(subSlaves), new AsyncFunction<List<Boolean>, Boolean>() {
+			@Override
+			public ListenableFuture<Boolean> apply(List<Boolean> input) {
+				for (Boolean healthy : input) {
+					if (!Boolean.TRUE.equals(healthy)) {
+						logger.warning(MessageFormat.format("Some sub-slaves of {0} did not come back online", compound.getNodeName()));
+						return terminate(compound);
+					}
+				}
+
+				reattached.incrementAndGet();
+				return Futures.immediateFuture(true);
+			}
+		});
+	}
+
+	/**
+	 * @return future of whether the sub-slave is online, reconnecting it or waiting for it to reconnect if it is not
+	 */
+	private ListenableFuture<Boolean> check(final Slave slave) {
+		return service.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				Computer computer = slave.toComputer();
+
+				if (computer == null) {
+					return false;
+				}
+
+				if (!computer.isOnline()) {
+					if (slave.getLauncher().isLaunchSupported()) {
+						reconnect(slave, computer);
+					} else {
+						awaitOnline(slave, computer);
+					}
+				}
+
+				return computer.isOnline();
+			}
+		});
+	}
+
+	private void reconnect(Slave slave, Computer computer) throws InterruptedException {
+		try {
+			computer.connect(false).get(connectTimeoutSeconds, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			logger.log(Level.INFO, MessageFormat.format("Failed to reconnect sub-slave {0}", slave.getNodeName()), e.getCause());
+		} catch (TimeoutException e) {
+			logger.info(MessageFormat.format("Sub-slave {0} did not reconnect within {1} seconds", slave.getNodeName(), connectTimeoutSeconds));
+		}
+	}
+
+	/**
+	 * Waits for a sub-slave that connects to the master by itself
+	 */
+	private void awaitOnline(Slave slave, Computer computer) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(connectTimeoutSeconds);
+
+		while (!computer.isOnline() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(AWAIT_POLL_MILLIS);
+		}
+
+		if (!computer.isOnline()) {
+			logger.info(MessageFormat.format("Sub-slave {0} did not come back online within {1} seconds", slave.getNodeName(), connectTimeoutSeconds));
+		}
+	}
+
+	/**
+	 * @return future of <b>false</b>, once the compound is terminated
+	 */
+	private ListenableFuture<Boolean> terminate(final CompoundSlave compound) {
+		return service.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				logger.warning("Terminating compound " + compound.getNodeName());
+				compound.terminate();
+				terminated.incrementAndGet();
+				return false;
+			}
+		});
+	}
+
+	private static void reserve(CompoundSlave compound) {
+		for (Map.Entry<String, List<Slave>> role : compound.getAllSlaves().entrySet()) {
+			int executors = getExecutors(compound, role.getKey());
+
+			for (Slave slave : role.getValue()) {
+				SubSlaveReservations.get().reserve(slave.getNodeName(), compound.getNodeName(), executors);
+				if (slave.getComputer() != null) {
+					slave.getComputer().setAcceptingTasks(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {@link SlaveEntry#getExecutors()} of the role in the configuration the compound was provisioned with, {@link SubSlaveReservations#WHOLE}
+	 *         for compounds made by hand
+	 */
+	private static int getExecutors(CompoundSlave compound, String role) {
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (!(cloud instanceof CompoundCloud) || ((CompoundCloud) cloud).getConfiguration() == null) {
+				continue;
+			}
+
+			for (ConfigurationEntry entry : ((CompoundCloud) cloud).getConfiguration()) {
+				if (!entry.getLabelAtom().getName().equals(compound.getLabelString())) {
+					continue;
+				}
+
+				for (SlaveEntry slaveEntry : entry.getEntries()) {
+					if (slaveEntry.getRole().equals(role)) {
+						return slaveEntry.getExecutors();
+					}
+				}
+			}
+		}
+
+		return SubSlaveReservations.WHOLE;
+	}
+
+	/**
+	 * @param referenced
+	 *            names of the sub-slaves compounds play with
+	 * @return journaled sub-slaves nobody uses: neither compounds, nor assemblies running now, nor {@link SubSlavePool}; they may be held by
+	 *         {@link #OWNER} only
+	 */
+	private static List<Node> findOrphans(Set<String> referenced) {
+		Jenkins jenkins = Jenkins.getInstance();
+		List<Node> result = new ArrayList<Node>();
+
+		for (String name : SubSlaveJournal.get().getSubSlaves()) {
+			List<String> owners = SubSlaveReservations.get().getOwners(name);
+			owners.remove(OWNER);
+
+			if (referenced.contains(name) || !owners.isEmpty() || SubSlavePool.get().isParked(name)) {
+				continue;
+			}
+
+			Node node = jenkins.getNode(name);
+			if (node != null && !(node instanceof CompoundSlave)) {
+				result.add(node);
+			}
+		}
+
+		return result;
+	}
+
+	private static List<String> getNames(List<Node> nodes) {
+		List<String> result = new ArrayList<String>();
+		for (Node node : nodes) {
+			result.add(node.getNodeName());
+		}
+		return result;
+	}
+
+	@Exported
+	public int getConcurrency() {
+		return executor.getMaximumPoolSize();
+	}
+
+	@Exported
+	public int getConnectTimeoutSeconds() {
+		return connectTimeoutSeconds;
+	}
+
+	@Exported
+	public int getActiveTasks() {
+		return executor.getActiveCount();
+	}
+
+	@Exported
+	public long getReattached() {
+		return reattached.get();
+	}
+
+	@Exported
+	public long getTerminated() {
+		return terminated.get();
+	}
+
+	@Exported
+	public long getOrphans() {
+		return orphans.get();
+	}
+
+	/**
+	 * @return time the last reconciliation took
+	 */
+	@Exported
+	public long getLastMillis() {
+		return lastMillis.get();
+	}
+}
@@ -0,0 +1,208 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Queue;
+import hudson.model.Slave;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.CloudRetentionStrategy;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a reusable {@link CompoundSlave} for up to a number of builds or until it stays idle for too long, whichever comes first.
+ *
+ * Workspaces of the compound and of all its sub-slaves are wiped between builds. Once retention expires, the compound is terminated as a whole
+ * on {@link Computer#threadPoolForRemoting}, tearing all its sub-slaves down together. The strategy is shared with the sub-slaves, see
+ * {@link CompoundSlave#setRetentionStrategy(hudson.slaves.RetentionStrategy)}.
+ *
+ * Single-use compounds keep {@link hudson.slaves.RetentionStrategy.Always} and are destroyed by {@link CompoundTerminator}.
+ *
+ * @author pupssman
+ */
+public class CompoundRetentionStrategy extends CloudRetentionStrategy implements ExecutorListener {
+	private static final Logger logger = Logger.getLogger(CompoundRetentionStrategy.class.getCanonicalName());
+
+	private final int idleMinutes;
+	private final int maxBuilds;
+	private int builds = 0;
+	private boolean retired = false;
+	private transient boolean terminating = false;
+
+	/**
+	 * @param idleMinutes
+	 *            how long the compound may stay idle between builds
+	 * @param maxBuilds
+	 *            number of builds the compound serves before it is torn down
+	 */
+	public CompoundRetentionStrategy(int idleMinutes, int maxBuilds) {
+		super(idleMinutes);
+		this.idleMinutes = idleMinutes;
+		this.maxBuilds = maxBuilds;
+	}
+
+	public int getIdleMinutes() {
+		return idleMinutes;
+	}
+
+	public int getMaxBuilds() {
+		return maxBuilds;
+	}
+
+	public synchronized int getBuilds() {
+		return builds;
+	}
+
+	/**
+	 * @return whether the compound should be torn down after the current build instead of waiting for another one
+	 */
+	public synchronized boolean isExpired() {
+		return retired || builds >= maxBuilds;
+	}
+
+	/**
+	 * Stops handing the compound out, e.g. after a failed build left it in an unknown state; it is torn down once idle
+	 */
+	public synchronized void retire(AbstractCloudComputer<?> computer) {
+		retired = true;
+		computer.setAcceptingTasks(false);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public long check(AbstractCloudComputer computer) {
+		AbstractCloudSlave node = computer.getNode();
+
+		if (!(node instanceof CompoundSlave)) {
+			// a cloud sub-slave given the strategy of its compound, see CompoundSlave#setRetentionStrategy: it looks idle while the compound is
+			// busy and must not be let go on its own, it is torn down together with the compound
+			return 1;
+		}
+
+		if (!computer.isIdle()) {
+			return 1;
+		}
+
+		if (isExpired()) {
+			logger.info(MessageFormat.format("Retention of {0} expired after {1} builds, terminating", computer.getName(), getBuilds()));
+			terminateLater(computer, node);
+		} else if (System.currentTimeMillis() - computer.getIdleStartMilliseconds() > TimeUnit.MINUTES.toMillis(idleMinutes)) {
+			logger.info(MessageFormat.format("{0} stayed idle for {1} minutes, terminating", computer.getName(), idleMinutes));
+			terminateLater(computer, node);
+		}
+
+		return 1;
+	}
+
+	/**
+	 * Terminates the compound off the caller thread, tearing its sub-slaves down takes a while
+	 */
+	private void terminateLater(AbstractCloudComputer<?> computer, final AbstractCloudSlave node) {
+		synchronized (this) {
+			if (terminating) {
+				return;
+			}
+			terminating = true;
+			retired = true;
+		}
+
+		computer.setAcceptingTasks(false);
+
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					terminate(node);
+				} finally {
+					// a compound that failed to terminate is tried again by the next check
+					synchronized (CompoundRetentionStrategy.this) {
+						terminating = false;
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public synchronized void taskAccepted(Executor executor, Queue.Task task) {
+		if (!(executor.getOwner().getNode() instanceof CompoundSlave)) {
+			return;
+		}
+
+		builds++;
+
+		if (builds >= maxBuilds) {
+			executor.getOwner().setAcceptingTasks(false);
+		}
+	}
+
+	@Override
+	public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+		done(executor);
+	}
+
+	@Override
+	public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+		done(executor);
+	}
+
+	private void done(Executor executor) {
+		if (!(executor.getOwner().getNode() instanceof CompoundSlave)) {
+			return;
+		}
+
+		CompoundSlave compound = (CompoundSlave) executor.getOwner().getNode();
+
+		if (isExpired()) {
+			// check() terminates it as soon as it is idle
+			return;
+		}
+
+		try {
+			resetWorkspaces(compound);
+			if (compound.getTimeline() != null) {
+				compound.getTimeline().idle();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, MessageFormat.format("Failed to reset workspaces of {0}, retiring it", compound.getNodeName()), e);
+			retire((AbstractCloudComputer<?>) executor.getOwner());
+		} catch (InterruptedException e) {
+			logger.log(Level.WARNING, MessageFormat.format("Interrupted while resetting workspaces of {0}, retiring it", compound.getNodeName()), e);
+			retire((AbstractCloudComputer<?>) executor.getOwner());
+		}
+	}
+
+	/**
+	 * Wipes workspaces of the compound and all its sub-slaves, so the next build starts clean
+	 */
+	static void resetWorkspaces(CompoundSlave compound) throws IOException, InterruptedException {
+		wipe(compound.getWorkspaceRoot());
+
+		for (Slave slave : compound.getSubSlaves()) {
+			wipe(compound.getWorkspaceRoot(slave));
+		}
+	}
+
+	private static void wipe(FilePath workspaceRoot) throws IOException, InterruptedException {
+		if (workspaceRoot != null && workspaceRoot.exists()) {
+			workspaceRoot.deleteContents();
+		}
+	}
+
+	private static void terminate(AbstractCloudSlave node) {
+		try {
+			node.terminate();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to terminate " + node.getNodeName(), e);
+		} catch (InterruptedException e) {
+			logger.log(Level.WARNING, "Failed to terminate " + node.getNodeName(), e);
+		}
+	}
+}
@@ -1,14 +1,21 @@
 package ru.yandex.jenkins.plugins.compound;
 
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.TaskListener;
 import hudson.model.ComputerSet;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
 import hudson.model.Slave;
+import hudson.model.TopLevelItem;
 import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
+import hudson.slaves.CloudRetentionStrategy;
 import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
 import hudson.slaves.RetentionStrategy.Always;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
@@ -16,16 +23,16 @@ import hudson.util.ListBoxModel;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
-import jedi.functional.FunctionalPrimitives;
-import jedi.functional.Functor;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -45,21 +52,38 @@ import org.kohsuke.stapler.StaplerResponse;
  */
 public class CompoundSlave extends AbstractCloudSlave {
 
-	private final LinkedHashMap<String, List<Slave>> slaves = new LinkedHashMap<String, List<Slave>>();
+	// role -> names of the sub-slaves playing it; sub-slaves are persisted as nodes of their own
+	private volatile LinkedHashMap<String, List<String>> roles = new LinkedHashMap<String, List<String>>();
+	/**
+	 * @deprecated whole sub-slaves persisted by older versions, migrated to {@link #roles} on load
+	 */
+	@Deprecated
+	private LinkedHashMap<String, List<Slave>> slaves;
+	/**
+	 * @deprecated persisted by older versions, see {@link #getSelf()}
+	 */
+	@Deprecated
 	private Slave self;
+	// name of the CompoundCloud that provisioned this compound, null for the ones made by hand
+	private volatile String cloudName;
+	private transient volatile CompoundTopology topology;
+	private transient volatile ProvisioningTimeline timeline;
 
 	private static final long serialVersionUID = 1L;
 	public static final String ROLE_ROOT = "ROOT";
 	private static final Logger logger = Logger.getLogger(CompoundSlave.class.getCanonicalName());
 
+	// set when compounds in the old format were loaded, see #saveMigrated()
+	private static final AtomicBoolean migrated = new AtomicBoolean(false);
+
 	/**
-	 * Entry to pass around jelly-made ui
+	 * Immutable entry to pass around jelly-made ui, {@link CompoundTopology} hands the same instances to every reader
 	 * 
 	 * @author pupssman
 	 */
 	public static final class Entry {
-		private String slave;
-		private String role;
+		private final String slave;
+		private final String role;
 
 		@DataBoundConstructor
 		public Entry(String slave, String role) {
@@ -71,17 +95,9 @@ public class CompoundSlave extends AbstractCloudSlave {
 			return slave;
 		}
 
-		public void setSlave(String slave) {
-			this.slave = slave;
-		}
-
 		public String getRole() {
 			return role;
 		}
-
-		public void setRole(String role) {
-			this.role = role;
-		}
 	}
 
 	/**
@@ -130,9 +146,12 @@ public class CompoundSlave extends AbstractCloudSlave {
 
 		Jenkins jenkins = Jenkins.getInstance();
 
-		self = (Slave) jenkins.getNode(slaveNames.get(ROLE_ROOT).get(0));
+		LinkedHashMap<String, List<Slave>> roles = new LinkedHashMap<String, List<Slave>>();
 
 		for (java.util.Map.Entry<String, List<String>> slaveEntry : slaveNames.entrySet()) {
+			List<Slave> role = new ArrayList<Slave>();
+			roles.put(slaveEntry.getKey(), role);
+
 			for (String slaveName : slaveEntry.getValue()) {
 
 				Node node = jenkins.getNode(slaveName);
@@ -145,47 +164,241 @@ public class CompoundSlave extends AbstractCloudSlave {
 
 				// conquer the slave computer so we don't conflict with anyone else
 				enslave((Slave) node, this);
-				((Slave) node).setRetentionStrategy(getRetentionStrategy());
+				((Slave) node).setRetentionStrategy(getRetentionStrategy((Slave) node, getRetentionStrategy()));
 
-				getSlaves(slaveEntry.getKey()).add((Slave) node);
+				role.add((Slave) node);
 			}
 		}
+
+		setTopology(roles);
 	}
 
 	private CompoundSlave(String name, String description, String remoteFS, String label) throws FormException, IOException {
 		super(name, description, remoteFS, 1, Mode.EXCLUSIVE, label, null, new Always(), new ArrayList<NodeProperty<Slave>>());
 		setLauncher(new CompoundLauncher(this));
 		getNodeProperties().add(new CompoundNodeProperty(this));
-		self = this;
 	}
 
-	public List<Slave> getSlaves(String role) {
-		synchronized (slaves) {
-			if (slaves.get(role) == null) {
-				slaves.put(role, new ArrayList<Slave>());
+	/**
+	 * Shares the strategy with the sub-slaves, so they are kept or let go together with the compound
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void setRetentionStrategy(RetentionStrategy availabilityStrategy) {
+		super.setRetentionStrategy(availabilityStrategy);
+
+		// null while the super constructor runs, the constructor hands the strategy to the sub-slaves itself
+		if (roles != null) {
+			for (Slave slave : getSubSlaves()) {
+				slave.setRetentionStrategy(getRetentionStrategy(slave, availabilityStrategy));
 			}
+		}
+	}
 
-			return slaves.get(role);
+	/**
+	 * @return strategy of the compound for the sub-slave; {@link CloudRetentionStrategy} only checks cloud computers, so other sub-slaves are
+	 *         kept with {@link Always}
+	 */
+	@SuppressWarnings("rawtypes")
+	private static RetentionStrategy getRetentionStrategy(Slave slave, RetentionStrategy strategy) {
+		if (strategy instanceof CloudRetentionStrategy && !(slave instanceof AbstractCloudSlave)) {
+			return new Always();
 		}
+		return strategy;
 	}
 
-	public List<Entry> getEntries() {
-		List<Entry> result = new ArrayList<CompoundSlave.Entry>();
+	/**
+	 * Migrates compounds persisted with whole sub-slaves to name references
+	 */
+	@Override
+	protected Object readResolve() {
+		Object result = super.readResolve();
 
-		for (final java.util.Map.Entry<String, List<Slave>> mapEntry : slaves.entrySet()) {
-			result.addAll(FunctionalPrimitives.map(mapEntry.getValue(), new Functor<Slave, Entry>() {
-				@Override
-				public Entry execute(Slave value) {
-					return new Entry(value.getNodeName(), mapEntry.getKey());
+		if (roles == null) {
+			LinkedHashMap<String, List<String>> names = new LinkedHashMap<String, List<String>>();
+
+			if (slaves != null) {
+				for (java.util.Map.Entry<String, List<Slave>> role : slaves.entrySet()) {
+					List<String> slaveNames = new ArrayList<String>();
+					for (Slave slave : role.getValue()) {
+						slaveNames.add(slave.getNodeName());
+					}
+					names.put(role.getKey(), slaveNames);
 				}
-			}));
+				migrated.set(true);
+			}
+
+			roles = names;
 		}
 
+		slaves = null;
+		self = null;
+
 		return result;
 	}
 
+	/**
+	 * Saves compounds migrated by {@link #readResolve()}, so they are not loaded in the old format again.
+	 *
+	 * Compounds provisioned by older versions do not know their {@link CompoundCloud}, it is told by their name, which starts with the name of
+	 * the cloud.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void saveMigrated() throws IOException {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (Node node : jenkins.getNodes()) {
+			if (node instanceof CompoundSlave && ((CompoundSlave) node).getCloudName() == null) {
+				CompoundSlave compound = (CompoundSlave) node;
+				String owner = null;
+
+				for (Cloud cloud : jenkins.clouds) {
+					// the longest name wins, so "a-b-1" goes to cloud "a-b" rather than to "a"
+					if (cloud instanceof CompoundCloud && compound.getNodeName().startsWith(cloud.name + "-")
+							&& (owner == null || cloud.name.length() > owner.length())) {
+						owner = cloud.name;
+					}
+				}
+
+				if (owner != null) {
+					compound.setCloudName(owner);
+					migrated.set(true);
+				}
+			}
+		}
+
+		if (migrated.getAndSet(false)) {
+			logger.info("Saving compound slaves migrated to sub-slave references by name");
+			Jenkins.getInstance().save();
+		}
+	}
+
+	/**
+	 * @return current snapshot of the roles, see {@link CompoundTopology}
+	 */
+	public CompoundTopology getTopology() {
+		CompoundTopology result = topology;
+
+		if (result == null || !isCurrent(result)) {
+			result = resolveTopology(result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return <b>false</b> if {@link Jenkins} holds another instance under the name of any of the sub-slaves, i.e. it was reconfigured or
+	 *         replaced since the snapshot was taken
+	 */
+	private static boolean isCurrent(CompoundTopology topology) {
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (Slave slave : topology.getSubSlaves()) {
+			Node node = jenkins.getNode(slave.getNodeName());
+			if (node != null && node != slave) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Resolves the persisted names against {@link Jenkins}. The snapshot is kept only once all the sub-slaves are found, so a compound looked
+	 * at before all the nodes are loaded tries again next time.
+	 *
+	 * @param previous
+	 *            stale snapshot, its sub-slaves stand in for the ones {@link Jenkins} does not know (yet), may be <b>null</b>
+	 */
+	private CompoundTopology resolveTopology(CompoundTopology previous) {
+		Jenkins jenkins = Jenkins.getInstance();
+		Map<String, List<String>> names = roles;
+		Map<String, Slave> known = new HashMap<String, Slave>();
+		Map<String, List<Slave>> resolved = new LinkedHashMap<String, List<Slave>>();
+		boolean complete = true;
+
+		if (previous != null) {
+			for (Slave slave : previous.getSubSlaves()) {
+				known.put(slave.getNodeName(), slave);
+			}
+		}
+
+		for (java.util.Map.Entry<String, List<String>> role : names.entrySet()) {
+			List<Slave> found = new ArrayList<Slave>();
+
+			for (String name : role.getValue()) {
+				Node node = jenkins.getNode(name);
+				if (node instanceof Slave) {
+					found.add((Slave) node);
+				} else if (known.containsKey(name)) {
+					found.add(known.get(name));
+				} else {
+					complete = false;
+				}
+			}
+
+			resolved.put(role.getKey(), found);
+		}
+
+		CompoundTopology result = new CompoundTopology(resolved);
+
+		if (complete) {
+			topology = result;
+		} else {
+			logger.fine("Some sub-slaves of " + getNodeName() + " are not known to Jenkins yet");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Replaces the roles, publishing a new {@link CompoundTopology}
+	 *
+	 * @param subSlaves
+	 *            role -&gt; sub-slaves playing it, in order
+	 */
+	private void setTopology(Map<String, List<Slave>> subSlaves) {
+		LinkedHashMap<String, List<String>> names = new LinkedHashMap<String, List<String>>();
+
+		for (java.util.Map.Entry<String, List<Slave>> role : subSlaves.entrySet()) {
+			List<String> slaveNames = new ArrayList<String>();
+			for (Slave slave : role.getValue()) {
+				slaveNames.add(slave.getNodeName());
+			}
+			names.put(role.getKey(), slaveNames);
+		}
+
+		roles = names;
+		topology = new CompoundTopology(subSlaves);
+	}
+
+	/**
+	 * @return sub-slaves playing the role, empty and unmodifiable if there are none
+	 */
+	public List<Slave> getSlaves(String role) {
+		return getTopology().getSlaves(role);
+	}
+
+	/**
+	 * @return all the sub-slaves, role by role
+	 */
+	public List<Slave> getSubSlaves() {
+		return getTopology().getSubSlaves();
+	}
+
+	public List<Entry> getEntries() {
+		return getTopology().getEntries();
+	}
+
+	/**
+	 * @return role -&gt; names of the sub-slaves playing it as persisted, including the ones {@link Jenkins} does not know
+	 */
+	public Map<String, List<String>> getSubSlaveNames() {
+		return Collections.unmodifiableMap(roles);
+	}
+
 	public int getSlaveNumber() {
-		return slaves.size();
+		return getTopology().getByRole().size();
 	}
 
 	@Extension
@@ -212,10 +425,50 @@ public class CompoundSlave extends AbstractCloudSlave {
 		public DescriptorImpl() {
 			super();
 			load();
+			ProvisioningExecutor.get().setThreads(provisioningThreads);
+			Teardown.get().configure(teardownConcurrency, teardownTimeout, teardownAttempts);
+			SubSlavePool.get().setTtlMinutes(subSlaveParkingMinutes);
+			CompoundReconciler.get().setConnectTimeoutSeconds(reconnectTimeout);
 		}
 
 		private final List<RoleEntry> roles = new ArrayList<RoleEntry>(Arrays.asList(new RoleEntry(ROLE_ROOT, null)));
 
+		private int provisioningThreads = ProvisioningExecutor.DEFAULT_THREADS;
+
+		private int teardownConcurrency = Teardown.DEFAULT_CONCURRENCY;
+
+		private int teardownTimeout = Teardown.DEFAULT_TIMEOUT_SECONDS;
+
+		private int teardownAttempts = Teardown.DEFAULT_ATTEMPTS;
+
+		private int subSlaveParkingMinutes = SubSlavePool.DEFAULT_TTL_MINUTES;
+
+		private int reconnectTimeout = CompoundReconciler.DEFAULT_CONNECT_TIMEOUT_SECONDS;
+
+		public int getProvisioningThreads() {
+			return provisioningThreads;
+		}
+
+		public int getTeardownConcurrency() {
+			return teardownConcurrency;
+		}
+
+		public int getTeardownTimeout() {
+			return teardownTimeout;
+		}
+
+		public int getTeardownAttempts() {
+			return teardownAttempts;
+		}
+
+		public int getSubSlaveParkingMinutes() {
+			return subSlaveParkingMinutes;
+		}
+
+		public int getReconnectTimeout() {
+			return reconnectTimeout;
+		}
+
 		public List<String> getRoleNames() {
 			ArrayList<String> roleNames = new ArrayList<String>();
 			for(RoleEntry entry : roles) {
@@ -296,6 +549,21 @@ public class CompoundSlave extends AbstractCloudSlave {
 				// something unexpected - restore old roles
 				roles.addAll(oldRoles);
 			}
+
+			provisioningThreads = Math.max(1, formData.optInt("provisioningThreads", ProvisioningExecutor.DEFAULT_THREADS));
+			ProvisioningExecutor.get().setThreads(provisioningThreads);
+
+			teardownConcurrency = Math.max(1, formData.optInt("teardownConcurrency", Teardown.DEFAULT_CONCURRENCY));
+			teardownTimeout = Math.max(0, formData.optInt("teardownTimeout", Teardown.DEFAULT_TIMEOUT_SECONDS));
+			teardownAttempts = Math.max(1, formData.optInt("teardownAttempts", Teardown.DEFAULT_ATTEMPTS));
+			Teardown.get().configure(teardownConcurrency, teardownTimeout, teardownAttempts);
+
+			subSlaveParkingMinutes = Math.max(0, formData.optInt("subSlaveParkingMinutes", SubSlavePool.DEFAULT_TTL_MINUTES));
+			SubSlavePool.get().setTtlMinutes(subSlaveParkingMinutes);
+
+			reconnectTimeout = Math.max(0, formData.optInt("reconnectTimeout", CompoundReconciler.DEFAULT_CONNECT_TIMEOUT_SECONDS));
+			CompoundReconciler.get().setConnectTimeoutSeconds(reconnectTimeout);
+
 			save();
 			return super.configure(req, formData);
 		}
@@ -308,6 +576,38 @@ public class CompoundSlave extends AbstractCloudSlave {
 			}
 		}
 		
+		public FormValidation doCheckProvisioningThreads(@QueryParameter String provisioningThreads) {
+			if (provisioningThreads.matches("[1-9]\\d*")) {
+				return FormValidation.ok();
+			} else {
+				return FormValidation.error("Bad value: use positive number");
+			}
+		}
+
+		public FormValidation doCheckTeardownConcurrency(@QueryParameter String teardownConcurrency) {
+			return doCheckProvisioningThreads(teardownConcurrency);
+		}
+
+		public FormValidation doCheckTeardownTimeout(@QueryParameter String teardownTimeout) {
+			if (teardownTimeout.matches("\\d+")) {
+				return FormValidation.ok();
+			} else {
+				return FormValidation.error("Bad value: use number");
+			}
+		}
+
+		public FormValidation doCheckTeardownAttempts(@QueryParameter String teardownAttempts) {
+			return doCheckProvisioningThreads(teardownAttempts);
+		}
+
+		public FormValidation doCheckSubSlaveParkingMinutes(@QueryParameter String subSlaveParkingMinutes) {
+			return doCheckTeardownTimeout(subSlaveParkingMinutes);
+		}
+
+		public FormValidation doCheckReconnectTimeout(@QueryParameter String reconnectTimeout) {
+			return doCheckTeardownTimeout(reconnectTimeout);
+		}
+
 		public FormValidation doCheckDefaultLabel(@QueryParameter String defaultLabel) {
 			if (defaultLabel != null && !defaultLabel.isEmpty()) {
 				return FormValidation.ok();
@@ -317,12 +617,80 @@ public class CompoundSlave extends AbstractCloudSlave {
 		}
 	}
 
+	/**
+	 * @return role -&gt; sub-slaves playing it, unmodifiable
+	 */
 	public Map<String, List<Slave>> getAllSlaves() {
-		return new HashMap<String, List<Slave>>(slaves);
+		return getTopology().getByRole();
+	}
+
+	/**
+	 * @return root of the workspaces of this compound on the sub-slave; a share of a sub-slave gets a root of its own, so compounds sharing it do
+	 *         not see each other's files
+	 */
+	public FilePath getWorkspaceRoot(Slave slave) {
+		if (!SubSlaveReservations.get().isShared(slave.getNodeName(), getNodeName())) {
+			return slave.getWorkspaceRoot();
+		}
+
+		FilePath root = slave.getRootPath();
+		return root == null ? null : root.child("shares").child(getNodeName());
 	}
 
+	/**
+	 * @see #getWorkspaceRoot(Slave)
+	 */
+	public FilePath getWorkspaceFor(Slave slave, TopLevelItem item) {
+		if (!SubSlaveReservations.get().isShared(slave.getNodeName(), getNodeName())) {
+			return slave.getWorkspaceFor(item);
+		}
+
+		FilePath root = getWorkspaceRoot(slave);
+		return root == null ? null : root.child(item.getFullName());
+	}
+
+	/**
+	 * @return the {@link #ROLE_ROOT} sub-slave, this compound if there is none
+	 */
 	public Slave getSelf() {
-		return self;
+		Slave root = getTopology().getSlave(ROLE_ROOT, 1);
+		return root == null ? this : root;
+	}
+
+	/**
+	 * @return name of the {@link CompoundCloud} that provisioned this compound, <b>null</b> if it was made by hand
+	 */
+	public String getCloudName() {
+		return cloudName;
+	}
+
+	public void setCloudName(String cloudName) {
+		this.cloudName = cloudName;
+	}
+
+	/**
+	 * Keeps the {@link CompoundCloud} of a compound reconfigured from the UI, which builds a new instance from the form
+	 */
+	@Override
+	public Node reconfigure(StaplerRequest req, JSONObject form) throws FormException {
+		Node result = super.reconfigure(req, form);
+
+		if (result instanceof CompoundSlave) {
+			((CompoundSlave) result).setCloudName(cloudName);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return <b>null</b> unless this compound was provisioned by a {@link CompoundCloud} since the last restart
+	 */
+	public ProvisioningTimeline getTimeline() {
+		return timeline;
+	}
+
+	public void setTimeline(ProvisioningTimeline timeline) {
+		this.timeline = timeline;
 	}
 
 	@Override
@@ -331,51 +699,68 @@ public class CompoundSlave extends AbstractCloudSlave {
 	}
 
 	/**
-	 * Terminates all the cloud-based sub-slaves within the compound slave
+	 * Terminates all the cloud-based sub-slaves within the compound slave, except the healthy ones taken by {@link SubSlavePool} and the ones
+	 * other compounds hold shares of
 	 */
 	@Override
 	protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-		for (List<Slave> slaves : getAllSlaves().values()) {
-			for (Slave slave : slaves) {
-				free(slave);
-				if (slave instanceof AbstractCloudSlave) {
-					try {
-						listener.getLogger().println("Terminating sub-slave " + slave.getDisplayName());
-						((AbstractCloudSlave) slave).terminate();
-					} catch (IOException e) {
-						e.printStackTrace(listener.fatalError("Terminating slave {0} failed", slave.getDisplayName()));
-					} catch (InterruptedException e) {
-						e.printStackTrace(listener.fatalError("Terminating slave {0} failed", slave.getDisplayName()));
-					}
-				}
+		List<Slave> toTerminate = new ArrayList<Slave>();
+
+		for (Slave slave : getSubSlaves()) {
+			if (SubSlavePool.get().park(slave, getNodeName())) {
+				continue;
+			}
+			if (!SubSlaveReservations.get().release(slave.getNodeName(), getNodeName())) {
+				// still shared by other compounds
+				continue;
+			}
+			if (slave instanceof AbstractCloudSlave) {
+				toTerminate.add(slave);
+			} else if (slave.getComputer() != null) {
+				// added by hand, handed back to the queue
+				slave.getComputer().setAcceptingTasks(true);
 			}
 		}
+
+		// sub-slaves are terminated in parallel, see Teardown
+		Teardown.get().run(toTerminate, false, listener);
 	}
 
-	public static void free(Slave slave) {
+	/**
+	 * Releases the master's reservation of the sub-slave and hands it back to the queue, unless other compounds still hold shares of it, see
+	 * {@link SubSlaveReservations}
+	 *
+	 * @return <b>false</b> if other compounds still use the sub-slave, so it must not be torn down
+	 */
+	public static boolean free(Slave slave, String master) {
+		if (!SubSlaveReservations.get().release(slave.getNodeName(), master)) {
+			return false;
+		}
+
 		if (slave.getComputer() != null) {
-			// no computer -- no executors -- no need to free
-			try {
-				new ComputerAccessHack(slave.getComputer()).freeExecutors();
-			} catch (IllegalArgumentException e) {
-				logger.info("Failed to re-enable slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-			} catch (IllegalAccessException e) {
-				logger.info("Failed to re-enable slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-			}
 			slave.getComputer().setAcceptingTasks(true);
 		}
+		return true;
 	}
 
+	/**
+	 * Keeps the queue off the sub-slave for as long as it belongs to the master, see {@link SubSlaveReservations}
+	 */
 	public static void enslave(Slave slave, CompoundSlave master) {
-		slave.getComputer().setAcceptingTasks(false);
+		long started = System.currentTimeMillis();
+		boolean enslaved = false;
+
 		try {
-			new ComputerAccessHack(slave.getComputer()).occupyExecutors(master);
-		} catch (IllegalArgumentException e) {
-			logger.info("Failed to fully conquer sub-slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-		} catch (IllegalAccessException e) {
-			logger.info("Failed to fully conquer sub-slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
-		} catch (IOException e) {
-			logger.info("Failed to fully conquer sub-slave " + slave.getDisplayName() + " due to error:" + e.getMessage());
+			SubSlaveReservations.get().reserve(slave.getNodeName(), master.getNodeName());
+			if (slave.getComputer() != null) {
+				slave.getComputer().setAcceptingTasks(false);
+			}
+			enslaved = true;
+		} finally {
+			ProvisioningMetrics.get().record(ProvisioningMetrics.ENSLAVE, master.getLabelString(), null, started, enslaved);
+			if (master.getTimeline() != null) {
+				master.getTimeline().enslaved(System.currentTimeMillis() - started);
+			}
 		}
 	}
 }
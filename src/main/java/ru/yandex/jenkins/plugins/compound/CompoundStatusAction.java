@@ -0,0 +1,207 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.LabelBudget;
+
+/**
+ * Plugin status page at <b>/compound-slaves</b>, also available via the remote API.
+ *
+ * Node names, breaker state and budgets are shown, so the page and its API are for administrators only.
+ *
+ * @author pupssman
+ */
+@Extension
+@ExportedBean
+public class CompoundStatusAction implements RootAction, StaplerProxy {
+
+	@Override
+	public String getIconFileName() {
+		return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ? "computer.png" : null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Compound slaves";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "compound-slaves";
+	}
+
+	/**
+	 * Guards the page and everything under it
+	 */
+	@Override
+	public Object getTarget() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return this;
+	}
+
+	public Api getApi() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return new Api(this);
+	}
+
+	@Exported
+	public ProvisioningExecutor getExecutor() {
+		return ProvisioningExecutor.get();
+	}
+
+	@Exported
+	public List<LatencyHistogram> getLatencies() {
+		return ProvisioningMetrics.get().getHistograms();
+	}
+
+	@Exported
+	public Teardown getTeardown() {
+		return Teardown.get();
+	}
+
+	@Exported
+	public CompoundReconciler getReconciler() {
+		return CompoundReconciler.get();
+	}
+
+	@Exported
+	public SubSlaveReaper getReaper() {
+		return SubSlaveReaper.get();
+	}
+
+	@Exported
+	public SubSlavePool getSubSlavePool() {
+		return SubSlavePool.get();
+	}
+
+	@Exported
+	public List<BackendHealth.Breaker> getBreakers() {
+		return BackendHealth.get().getBreakers();
+	}
+
+	@Exported
+	public List<CloudStatus> getClouds() {
+		List<CloudStatus> result = new ArrayList<CloudStatus>();
+
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (cloud instanceof CompoundCloud) {
+				result.add(new CloudStatus((CompoundCloud) cloud));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Status of a single {@link CompoundCloud}
+	 *
+	 * @author pupssman
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class CloudStatus {
+		private final CompoundCloud cloud;
+
+		private CloudStatus(CompoundCloud cloud) {
+			this.cloud = cloud;
+		}
+
+		@Exported
+		public String getName() {
+			return cloud.name;
+		}
+
+		@Exported
+		public List<CompoundPool.Status> getPools() {
+			return cloud.getPoolStatus();
+		}
+
+		@Exported
+		public List<DemandHistory.Forecast> getForecasts() {
+			return cloud.getForecasts();
+		}
+
+		@Exported
+		public int getInstances() {
+			return cloud.countInstances();
+		}
+
+		@Exported
+		public int getInstanceCap() {
+			return cloud.getInstanceCap();
+		}
+
+		@Exported
+		public List<SubSlaveUsage> getSubSlaves() {
+			List<SubSlaveUsage> result = new ArrayList<SubSlaveUsage>();
+			Map<String, Integer> usage = new TreeMap<String, Integer>(cloud.countSubSlaves());
+
+			for (LabelBudget budget : cloud.getBudgets()) {
+				if (!usage.containsKey(budget.getLabelAtom().getName())) {
+					usage.put(budget.getLabelAtom().getName(), 0);
+				}
+			}
+
+			for (Map.Entry<String, Integer> entry : usage.entrySet()) {
+				int limit = 0;
+				for (LabelBudget budget : cloud.getBudgets()) {
+					if (budget.getLabelAtom().getName().equals(entry.getKey())) {
+						limit = budget.getMaxSubSlaves();
+					}
+				}
+				result.add(new SubSlaveUsage(entry.getKey(), entry.getValue(), limit));
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Sub-slaves of a single backend label held by a {@link CompoundCloud}
+	 *
+	 * @author pupssman
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class SubSlaveUsage {
+		private final String label;
+		private final int used;
+		private final int budget;
+
+		private SubSlaveUsage(String label, int used, int budget) {
+			this.label = label;
+			this.used = used;
+			this.budget = budget;
+		}
+
+		@Exported
+		public String getLabel() {
+			return label;
+		}
+
+		@Exported
+		public int getUsed() {
+			return used;
+		}
+
+		/**
+		 * @return <b>0</b> if there is no budget for the label
+		 */
+		@Exported
+		public int getBudget() {
+			return budget;
+		}
+	}
+}
@@ -10,6 +10,8 @@ import hudson.model.Node;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.RetentionStrategy;
 import hudson.tasks.Recorder;
 
 import java.io.IOException;
@@ -29,12 +31,25 @@ public class CompoundTerminator extends Recorder {
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
 		Node node = build.getExecutor().getOwner().getNode();
+		CompoundRetentionStrategy retention = getReuse(node);
 
 		if (!build.getResult().isBetterOrEqualTo(Result.SUCCESS)) {
+			if (retention != null) {
+				listener.getLogger().println("[compound-terminator] Build has not succeded, retiring reusable slave " + node.getDisplayName() + ".");
+				retention.retire((AbstractCloudComputer<?>) build.getExecutor().getOwner());
+				return true;
+			}
 			listener.getLogger().println("[compound-terminator] Build has not succeded, leaving slave as-is.");
 			return true;
 		}
 
+		if (retention != null && !retention.isExpired()) {
+			listener.getLogger().println(
+					"[compound-terminator] " + node.getDisplayName() + " is reusable and has served " + retention.getBuilds() + " of "
+							+ retention.getMaxBuilds() + " builds, leaving it for the next one.");
+			return true;
+		}
+
 		if (node instanceof CompoundSlave) {
 			listener.getLogger().println("[compound-terminator] Found self at node " + node.getDisplayName() + ", which is a CompoundSlave. Terminating...");
 			try {
@@ -55,6 +70,19 @@ public class CompoundTerminator extends Recorder {
 
 	}
 
+	/**
+	 * @return retention of a reusable compound, <b>null</b> for single-use ones and other nodes
+	 */
+	private static CompoundRetentionStrategy getReuse(Node node) {
+		if (node instanceof CompoundSlave) {
+			RetentionStrategy<?> retention = ((CompoundSlave) node).getRetentionStrategy();
+			if (retention instanceof CompoundRetentionStrategy) {
+				return (CompoundRetentionStrategy) retention;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public boolean needsToRunAfterFinalized() {
 		return true;
@@ -0,0 +1,87 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Slave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+
+/**
+ * Immutable snapshot of the roles of a {@link CompoundSlave} and of the sub-slaves playing them.
+ *
+ * Everything is indexed when the snapshot is built, so reads neither lock nor allocate; a changed topology is published as a new snapshot.
+ *
+ * @author pupssman
+ */
+public final class CompoundTopology {
+	private final Map<String, List<Slave>> byRole;
+	private final List<Slave> subSlaves;
+	private final List<Entry> entries;
+
+	/**
+	 * @param slaves
+	 *            role -&gt; sub-slaves playing it, in order
+	 */
+	public CompoundTopology(Map<String, List<Slave>> slaves) {
+		Map<String, List<Slave>> byRole = new LinkedHashMap<String, List<Slave>>();
+		List<Slave> subSlaves = new ArrayList<Slave>();
+		List<Entry> entries = new ArrayList<Entry>();
+
+		for (Map.Entry<String, List<Slave>> role : slaves.entrySet()) {
+			byRole.put(role.getKey(), Collections.unmodifiableList(new ArrayList<Slave>(role.getValue())));
+
+			for (Slave slave : role.getValue()) {
+				subSlaves.add(slave);
+				entries.add(new Entry(slave.getNodeName(), role.getKey()));
+			}
+		}
+
+		this.byRole = Collections.unmodifiableMap(byRole);
+		this.subSlaves = Collections.unmodifiableList(subSlaves);
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return role -&gt; sub-slaves playing it, in order
+	 */
+	public Map<String, List<Slave>> getByRole() {
+		return byRole;
+	}
+
+	/**
+	 * @return sub-slaves playing the role, empty if there are none
+	 */
+	public List<Slave> getSlaves(String role) {
+		List<Slave> result = byRole.get(role);
+		return result == null ? Collections.<Slave> emptyList() : result;
+	}
+
+	/**
+	 * @param role
+	 * @param ordinal
+	 *            of the sub-slave within the role, starting with <b>1</b>
+	 * @return <b>null</b> if the role has fewer sub-slaves
+	 */
+	public Slave getSlave(String role, int ordinal) {
+		List<Slave> slaves = getSlaves(role);
+		return ordinal >= 1 && ordinal <= slaves.size() ? slaves.get(ordinal - 1) : null;
+	}
+
+	/**
+	 * @return all the sub-slaves, role by role
+	 */
+	public List<Slave> getSubSlaves() {
+		return subSlaves;
+	}
+
+	/**
+	 * @return entries of all the sub-slaves, role by role
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+}
@@ -0,0 +1,311 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.XmlFile;
+import hudson.model.Saveable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Time-bucketed history of compound demand per configuration label, used to pre-assemble compounds ahead of periodic spikes.
+ *
+ * Demand is the number of compounds handed out or planned by {@link CompoundCloud#provision(hudson.model.Label, int)} within a
+ * {@link #BUCKET_MILLIS} bucket, plus the largest workload it could not plan at once because of capacity or backing off backends. The unmet
+ * part is taken as a peak rather than summed, as the same workload is asked for again and again until it is served. Closed buckets are folded into a daily profile (one slot per bucket of the local day) with an exponentially
+ * weighted average over the days, so a label costs {@link #BUCKETS_PER_DAY} numbers no matter how long it has been observed.
+ *
+ * Each closed bucket is also compared against what the profile predicted for it, which gives the forecast accuracy shown on the status page.
+ *
+ * The history is kept in <b>compound-demand-history.xml</b> under the Jenkins home and survives restarts.
+ *
+ * @author pupssman
+ */
+public final class DemandHistory implements Saveable {
+	static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(15);
+	static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+	static final int BUCKETS_PER_DAY = (int) (DAY_MILLIS / BUCKET_MILLIS);
+	static final double EWMA_WEIGHT = 0.3;
+
+	/**
+	 * Longer gaps between observations are taken for a Jenkins downtime rather than for a period without demand
+	 */
+	static final int MAX_GAP_BUCKETS = 4;
+
+	private static final Logger logger = Logger.getLogger(DemandHistory.class.getCanonicalName());
+
+	private static DemandHistory instance;
+
+	private final Map<String, Series> series = new HashMap<String, Series>();
+
+	public static synchronized DemandHistory get() {
+		if (instance == null) {
+			instance = new DemandHistory();
+
+			XmlFile file = getConfigFile();
+			if (file.exists()) {
+				try {
+					file.unmarshal(instance);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to load compound demand history, starting from scratch", e);
+				}
+			}
+		}
+
+		return instance;
+	}
+
+	private static XmlFile getConfigFile() {
+		return new XmlFile(new File(Jenkins.getInstance().getRootDir(), "compound-demand-history.xml"));
+	}
+
+	/**
+	 * @param label
+	 *            of the configuration
+	 * @param compounds
+	 *            just handed out or planned
+	 * @param unmet
+	 *            workload asked for but not planned
+	 */
+	public synchronized void record(String label, int compounds, int unmet) {
+		if (compounds <= 0 && unmet <= 0) {
+			return;
+		}
+
+		Series target = getSeries(label);
+		long now = System.currentTimeMillis();
+
+		if (target.roll(now)) {
+			saveQuietly();
+		}
+
+		target.current += Math.max(0, compounds);
+		target.unmet = Math.max(target.unmet, unmet);
+	}
+
+	/**
+	 * Closes elapsed buckets of all the labels, so that periods without demand are learned too. Called periodically by
+	 * {@link CompoundPoolMaintenance}.
+	 */
+	public synchronized void tick() {
+		long now = System.currentTimeMillis();
+		boolean closed = false;
+
+		for (Series target : series.values()) {
+			closed |= target.roll(now);
+		}
+
+		if (closed) {
+			saveQuietly();
+		}
+	}
+
+	/**
+	 * @param label
+	 *            of the configuration
+	 * @param leadMillis
+	 *            how far ahead to look
+	 * @return number of compounds expected to be requested from now until <b>leadMillis</b> from now
+	 */
+	public synchronized double forecast(String label, long leadMillis) {
+		Series target = series.get(label);
+		return target == null ? 0 : target.forecast(System.currentTimeMillis(), leadMillis);
+	}
+
+	/**
+	 * @param label
+	 *            of the configuration
+	 * @param leadMinutes
+	 *            forecast horizon
+	 */
+	public synchronized Forecast getForecast(String label, int leadMinutes) {
+		Series target = getSeries(label);
+
+		double expected = target.forecast(System.currentTimeMillis(), TimeUnit.MINUTES.toMillis(leadMinutes));
+		double accuracy = target.scale > 0 ? 1 - target.absoluteError / target.scale : 1;
+
+		return new Forecast(label, leadMinutes, expected, accuracy, target.checked);
+	}
+
+	private Series getSeries(String label) {
+		Series result = series.get(label);
+
+		if (result == null) {
+			result = new Series();
+			series.put(label, result);
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized void save() throws IOException {
+		getConfigFile().write(this);
+	}
+
+	private void saveQuietly() {
+		try {
+			save();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to save compound demand history", e);
+		}
+	}
+
+	static int slotOf(long time) {
+		long local = time + TimeZone.getDefault().getOffset(time);
+		return (int) ((local % DAY_MILLIS + DAY_MILLIS) % DAY_MILLIS / BUCKET_MILLIS);
+	}
+
+	static long align(long time) {
+		return time - time % BUCKET_MILLIS;
+	}
+
+	/**
+	 * Daily demand profile of a single label
+	 *
+	 * @author pupssman
+	 */
+	static final class Series {
+		private final double[] profile = new double[BUCKETS_PER_DAY];
+		private final boolean[] known = new boolean[BUCKETS_PER_DAY];
+
+		private long bucketStart = 0;
+		private int current = 0;
+		private int unmet = 0;
+
+		private double absoluteError = 0;
+		private double scale = 0;
+		private long checked = 0;
+
+		/**
+		 * @return whether some bucket was closed
+		 */
+		boolean roll(long now) {
+			long start = align(now);
+
+			if (bucketStart == 0) {
+				bucketStart = start;
+				return false;
+			}
+
+			if (start <= bucketStart) {
+				return false;
+			}
+
+			close(bucketStart, current + unmet);
+
+			long gap = (start - bucketStart) / BUCKET_MILLIS;
+
+			if (gap <= MAX_GAP_BUCKETS) {
+				for (long time = bucketStart + BUCKET_MILLIS; time < start; time += BUCKET_MILLIS) {
+					close(time, 0);
+				}
+			}
+
+			bucketStart = start;
+			current = 0;
+			unmet = 0;
+
+			return true;
+		}
+
+		private void close(long start, int observed) {
+			int slot = slotOf(start);
+
+			if (known[slot]) {
+				absoluteError += Math.abs(observed - profile[slot]);
+				scale += Math.max(observed, profile[slot]);
+				checked++;
+
+				profile[slot] = EWMA_WEIGHT * observed + (1 - EWMA_WEIGHT) * profile[slot];
+			} else {
+				profile[slot] = observed;
+				known[slot] = true;
+			}
+		}
+
+		double forecast(long now, long leadMillis) {
+			double result = 0;
+			long start = align(now);
+
+			for (long time = start; time <= now + leadMillis; time += BUCKET_MILLIS) {
+				double expected = profile[slotOf(time)];
+
+				if (time == start && time == bucketStart) {
+					// part of the current bucket has already been served
+					expected = Math.max(0, expected - current);
+				}
+
+				result += expected;
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Upcoming demand of a single configuration label along with how well it was predicted so far
+	 *
+	 * @author pupssman
+	 */
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Forecast {
+		private final String label;
+		private final int leadMinutes;
+		private final double expected;
+		private final double accuracy;
+		private final long checked;
+
+		private Forecast(String label, int leadMinutes, double expected, double accuracy, long checked) {
+			this.label = label;
+			this.leadMinutes = leadMinutes;
+			this.expected = expected;
+			this.accuracy = accuracy;
+			this.checked = checked;
+		}
+
+		@Exported
+		public String getLabel() {
+			return label;
+		}
+
+		@Exported
+		public int getLeadMinutes() {
+			return leadMinutes;
+		}
+
+		/**
+		 * @return compounds expected to be requested within the lead time
+		 */
+		@Exported
+		public double getExpected() {
+			return expected;
+		}
+
+		/**
+		 * @return one minus the absolute forecast error relative to the larger of forecast and observation, summed over all checked buckets
+		 */
+		@Exported
+		public double getAccuracy() {
+			return accuracy;
+		}
+
+		/**
+		 * @return number of buckets the forecast was checked against
+		 */
+		@Exported
+		public long getChecked() {
+			return checked;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Latencies of a single provisioning phase, with percentiles estimated from a fixed-size uniform reservoir sample.
+ *
+ * @author pupssman
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class LatencyHistogram implements LatencyHistogramMXBean {
+	static final int RESERVOIR_SIZE = 1024;
+
+	private final String phase;
+	private final String dimension;
+	private final String name;
+
+	// guarded by this
+	private final long[] reservoir = new long[RESERVOIR_SIZE];
+	private final Random random = new Random();
+	private long count = 0;
+	private long failures = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	LatencyHistogram(String phase, String dimension, String name) {
+		this.phase = phase;
+		this.dimension = dimension;
+		this.name = name;
+	}
+
+	/**
+	 * @param millis
+	 *            duration of the phase
+	 * @param success
+	 *            whether the phase succeeded; failures count, but only successful durations are sampled
+	 */
+	public synchronized void record(long millis, boolean success) {
+		if (!success) {
+			failures++;
+			return;
+		}
+
+		if (count < RESERVOIR_SIZE) {
+			reservoir[(int) count] = millis;
+		} else {
+			long slot = (long) (random.nextDouble() * (count + 1));
+			if (slot < RESERVOIR_SIZE) {
+				reservoir[(int) slot] = millis;
+			}
+		}
+
+		count++;
+		sum += millis;
+		max = Math.max(max, millis);
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1
+	 * @return estimated latency at the quantile, <b>0</b> if nothing was recorded
+	 */
+	public synchronized long getPercentile(double quantile) {
+		int size = (int) Math.min(count, RESERVOIR_SIZE);
+
+		if (size == 0) {
+			return 0;
+		}
+
+		long[] sample = Arrays.copyOf(reservoir, size);
+		Arrays.sort(sample);
+
+		int index = (int) Math.ceil(quantile * size) - 1;
+		return sample[Math.max(0, Math.min(size - 1, index))];
+	}
+
+	@Exported
+	@Override
+	public String getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return what {@link #getName()} is: <b>all</b>, <b>configuration</b> or <b>label</b>
+	 */
+	@Exported
+	@Override
+	public String getDimension() {
+		return dimension;
+	}
+
+	@Exported
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return number of successful phases
+	 */
+	@Exported
+	@Override
+	public synchronized long getCount() {
+		return count;
+	}
+
+	@Exported
+	@Override
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	@Exported
+	@Override
+	public synchronized long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	@Exported
+	@Override
+	public synchronized long getMax() {
+		return max;
+	}
+
+	@Exported
+	@Override
+	public long getP50() {
+		return getPercentile(0.5);
+	}
+
+	@Exported
+	@Override
+	public long getP95() {
+		return getPercentile(0.95);
+	}
+
+	@Exported
+	@Override
+	public long getP99() {
+		return getPercentile(0.99);
+	}
+}
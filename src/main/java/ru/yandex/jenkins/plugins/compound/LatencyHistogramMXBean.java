@@ -0,0 +1,28 @@
+package ru.yandex.jenkins.plugins.compound;
+
+/**
+ * JMX view of a {@link LatencyHistogram}
+ *
+ * @author pupssman
+ */
+public interface LatencyHistogramMXBean {
+	String getPhase();
+
+	String getDimension();
+
+	String getName();
+
+	long getCount();
+
+	long getFailures();
+
+	long getMean();
+
+	long getMax();
+
+	long getP50();
+
+	long getP95();
+
+	long getP99();
+}
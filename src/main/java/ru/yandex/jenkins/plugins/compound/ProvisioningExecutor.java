@@ -0,0 +1,187 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Dedicated bounded executor for the asynchronous provisioning pipeline of {@link CompoundCloud}.
+ *
+ * Tasks run on a fixed number of threads regardless of how many compounds are in flight. Plain {@link Future}s handed out by backend clouds are
+ * turned into {@link ListenableFuture}s by a single watcher thread polling them, so nobody blocks on {@link Future#get()}.
+ *
+ * @author pupssman
+ */
+@ExportedBean
+public final class ProvisioningExecutor {
+	public static final int DEFAULT_THREADS = 8;
+	private static final long POLL_INTERVAL_MILLIS = 500;
+
+	private static final Logger logger = Logger.getLogger(ProvisioningExecutor.class.getCanonicalName());
+	private static final ProvisioningExecutor INSTANCE = new ProvisioningExecutor(DEFAULT_THREADS);
+
+	private final ThreadPoolExecutor executor;
+	private final ListeningExecutorService service;
+	private final ScheduledExecutorService watcher;
+	private final Map<Future<?>, SettableFuture<?>> watched = new ConcurrentHashMap<Future<?>, SettableFuture<?>>();
+
+	private ProvisioningExecutor(int threads) {
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("compound-provisioning-%d").setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
+		service = MoreExecutors.listeningDecorator(executor);
+
+		watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("compound-provisioning-watcher").setDaemon(true)
+				.build());
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	public static ProvisioningExecutor get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Changes the number of pipeline threads
+	 *
+	 * @param threads
+	 */
+	public synchronized void setThreads(int threads) {
+		int actual = Math.max(1, threads);
+
+		if (actual > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(actual);
+			executor.setCorePoolSize(actual);
+		} else {
+			executor.setCorePoolSize(actual);
+			executor.setMaximumPoolSize(actual);
+		}
+	}
+
+	public <T> ListenableFuture<T> submit(Callable<T> task) {
+		return service.submit(task);
+	}
+
+	/**
+	 * Runs a short action after a delay, e.g. to enforce a deadline
+	 *
+	 * @param action
+	 *            to run, must not block
+	 * @param delay
+	 * @param unit
+	 * @return handle to cancel the action
+	 */
+	public ScheduledFuture<?> schedule(Runnable action, long delay, TimeUnit unit) {
+		return watcher.schedule(action, delay, unit);
+	}
+
+	public ListeningExecutorService getService() {
+		return service;
+	}
+
+	/**
+	 * Adapts a plain {@link Future} without dedicating a thread to waiting for it
+	 *
+	 * @param future
+	 *            to watch
+	 * @return future completing together with the given one
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> ListenableFuture<T> listen(Future<T> future) {
+		if (future instanceof ListenableFuture) {
+			return (ListenableFuture<T>) future;
+		}
+
+		SettableFuture<T> result = SettableFuture.create();
+
+		if (future.isDone()) {
+			complete(future, result);
+		} else {
+			watched.put(future, result);
+		}
+
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void poll() {
+		Iterator<Map.Entry<Future<?>, SettableFuture<?>>> iterator = watched.entrySet().iterator();
+
+		while (iterator.hasNext()) {
+			Map.Entry<Future<?>, SettableFuture<?>> entry = iterator.next();
+
+			try {
+				if (entry.getValue().isCancelled()) {
+					iterator.remove();
+				} else if (entry.getKey().isDone()) {
+					iterator.remove();
+					complete((Future<Object>) entry.getKey(), (SettableFuture<Object>) entry.getValue());
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Failed to poll a provisioning future", e);
+			}
+		}
+	}
+
+	private static <T> void complete(Future<T> future, SettableFuture<T> result) {
+		try {
+			result.set(future.get());
+		} catch (InterruptedException e) {
+			result.setException(e);
+		} catch (ExecutionException e) {
+			result.setException(e.getCause() == null ? e : e.getCause());
+		} catch (RuntimeException e) {
+			// CancellationException included
+			result.setException(e);
+		}
+	}
+
+	@Exported
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	@Exported
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	@Exported
+	public int getActiveTasks() {
+		return executor.getActiveCount();
+	}
+
+	@Exported
+	public long getCompletedTasks() {
+		return executor.getCompletedTaskCount();
+	}
+
+	@Exported
+	public int getWatchedFutures() {
+		return watched.size();
+	}
+}
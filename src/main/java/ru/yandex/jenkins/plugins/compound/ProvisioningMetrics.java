@@ -0,0 +1,260 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.listeners.ItemListener;
+import hudson.slaves.Cloud;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jenkins.model.Jenkins;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+
+/**
+ * Latency histograms of compound provisioning phases.
+ *
+ * Every phase is recorded overall, per {@link CompoundCloud.ConfigurationEntry} and per backend label, where these apply. Histograms are created
+ * on first use and registered as platform MBeans under {@link #DOMAIN}.
+ *
+ * Configuration and label names come from user configuration, so their histograms are bounded by {@link #MAX_HISTOGRAMS}, beyond which names
+ * are recorded as {@link #OTHER}. Histograms of names no longer configured are dropped by {@link #retain(Set, Set)}, and all of them are
+ * unregistered when Jenkins shuts down.
+ *
+ * @author pupssman
+ */
+public final class ProvisioningMetrics {
+	public static final String DOMAIN = "ru.yandex.jenkins.plugins.compound";
+
+	/**
+	 * Whole compound, from planning to the assembled {@link CompoundSlave}
+	 */
+	public static final String ASSEMBLY = "assembly";
+	/**
+	 * Single sub-slave, from the request to the backend cloud to the delivered node
+	 */
+	public static final String PROVISION = "provision";
+	/**
+	 * Adding all the sub-slaves of a compound to Jenkins in a single batch
+	 */
+	public static final String REGISTER = "register";
+	/**
+	 * {@link CompoundLauncher#launch(hudson.slaves.SlaveComputer, hudson.model.TaskListener)} of a whole compound
+	 */
+	public static final String LAUNCH = "launch";
+	/**
+	 * {@link CompoundSlave#enslave(hudson.model.Slave, CompoundSlave)} of a single sub-slave
+	 */
+	public static final String ENSLAVE = "enslave";
+	/**
+	 * Queue time of builds that ran on a dynamically provisioned compound, see {@link QueueWaitAction}
+	 */
+	public static final String QUEUE = "queue";
+	/**
+	 * Part of {@link #QUEUE} spent waiting for the compound to be assembled
+	 */
+	public static final String QUEUE_PROVISIONING = "queue-provisioning";
+	/**
+	 * Part of {@link #QUEUE} spent waiting for the compound to launch
+	 */
+	public static final String QUEUE_LAUNCH = "queue-launch";
+
+	/**
+	 * Name recorded instead of configurations and labels beyond {@link #MAX_HISTOGRAMS}
+	 */
+	public static final String OTHER = "other";
+	static final int MAX_HISTOGRAMS = 512;
+
+	private static final String ALL = "all";
+	private static final String CONFIGURATION = "configuration";
+	private static final String LABEL = "label";
+
+	private static final Logger logger = Logger.getLogger(ProvisioningMetrics.class.getCanonicalName());
+	private static final ProvisioningMetrics INSTANCE = new ProvisioningMetrics();
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	public static ProvisioningMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param phase
+	 *            one of the phase constants
+	 * @param configuration
+	 *            label of the compound's configuration, <b>null</b> if unknown
+	 * @param backendLabel
+	 *            label the sub-slave was provisioned with, <b>null</b> if not applicable
+	 * @param started
+	 *            when the phase started
+	 * @param success
+	 *            whether it succeeded
+	 */
+	public void record(String phase, String configuration, String backendLabel, long started, boolean success) {
+		recordMillis(phase, configuration, backendLabel, System.currentTimeMillis() - started, success);
+	}
+
+	/**
+	 * @see #record(String, String, String, long, boolean)
+	 * @param millis
+	 *            duration of the phase
+	 */
+	public void recordMillis(String phase, String configuration, String backendLabel, long millis, boolean success) {
+		getHistogram(phase, ALL, ALL).record(millis, success);
+
+		if (configuration != null) {
+			getHistogram(phase, CONFIGURATION, configuration).record(millis, success);
+		}
+		if (backendLabel != null) {
+			getHistogram(phase, LABEL, backendLabel).record(millis, success);
+		}
+	}
+
+	private LatencyHistogram getHistogram(String phase, String dimension, String name) {
+		String key = phase + "\u0000" + dimension + "\u0000" + name;
+		LatencyHistogram histogram = histograms.get(key);
+
+		if (histogram == null && !ALL.equals(dimension) && histograms.size() >= MAX_HISTOGRAMS) {
+			key = phase + "\u0000" + dimension + "\u0000" + OTHER;
+			name = OTHER;
+			histogram = histograms.get(key);
+		}
+
+		if (histogram == null) {
+			histogram = new LatencyHistogram(phase, dimension, name);
+			if (histograms.putIfAbsent(key, histogram) == null) {
+				register(histogram);
+			} else {
+				histogram = histograms.get(key);
+			}
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Drops the histograms of configurations and backend labels that are no longer configured
+	 *
+	 * @param configurations
+	 *            labels of the configurations of all the {@link CompoundCloud}s
+	 * @param labels
+	 *            backend labels of all the configurations
+	 */
+	public void retain(Set<String> configurations, Set<String> labels) {
+		for (Iterator<LatencyHistogram> iterator = histograms.values().iterator(); iterator.hasNext();) {
+			LatencyHistogram histogram = iterator.next();
+
+			if (OTHER.equals(histogram.getName())) {
+				continue;
+			}
+
+			if ((CONFIGURATION.equals(histogram.getDimension()) && !configurations.contains(histogram.getName()))
+					|| (LABEL.equals(histogram.getDimension()) && !labels.contains(histogram.getName()))) {
+				iterator.remove();
+				unregister(histogram);
+			}
+		}
+	}
+
+	/**
+	 * Drops the histograms of everything no longer configured in any {@link CompoundCloud}
+	 */
+	public void retainConfigured() {
+		Set<String> configurations = new HashSet<String>();
+		Set<String> labels = new HashSet<String>();
+
+		for (Cloud cloud : Jenkins.getInstance().clouds) {
+			if (cloud instanceof CompoundCloud && ((CompoundCloud) cloud).getConfiguration() != null) {
+				for (ConfigurationEntry entry : ((CompoundCloud) cloud).getConfiguration()) {
+					configurations.add(entry.getLabelAtom().getName());
+					for (SlaveEntry slaveEntry : entry.getEntries()) {
+						labels.add(slaveEntry.getLabelAtomForProvisioning().getName());
+					}
+				}
+			}
+		}
+
+		retain(configurations, labels);
+	}
+
+	/**
+	 * Unregisters all the MBeans, so that a reloaded plugin does not find them taken
+	 */
+	public void unregisterAll() {
+		for (Iterator<LatencyHistogram> iterator = histograms.values().iterator(); iterator.hasNext();) {
+			LatencyHistogram histogram = iterator.next();
+			iterator.remove();
+			unregister(histogram);
+		}
+	}
+
+	private static ObjectName getObjectName(LatencyHistogram histogram) throws JMException {
+		return new ObjectName(DOMAIN + ":type=ProvisioningLatency,phase=" + ObjectName.quote(histogram.getPhase()) + ",dimension="
+				+ ObjectName.quote(histogram.getDimension()) + ",name=" + ObjectName.quote(histogram.getName()));
+	}
+
+	private static void register(LatencyHistogram histogram) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(histogram, getObjectName(histogram));
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Failed to register provisioning metrics in JMX", e);
+		}
+	}
+
+	private static void unregister(LatencyHistogram histogram) {
+		try {
+			ObjectName objectName = getObjectName(histogram);
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Failed to unregister provisioning metrics from JMX", e);
+		}
+	}
+
+	/**
+	 * Unregisters the MBeans before Jenkins goes down
+	 */
+	@Extension
+	public static class Shutdown extends ItemListener {
+		@Override
+		public void onBeforeShutdown() {
+			get().unregisterAll();
+		}
+	}
+
+	/**
+	 * @return all the histograms, ordered by phase, dimension and name
+	 */
+	public List<LatencyHistogram> getHistograms() {
+		List<LatencyHistogram> result = new ArrayList<LatencyHistogram>(histograms.values());
+
+		Collections.sort(result, new Comparator<LatencyHistogram>() {
+			@Override
+			public int compare(LatencyHistogram o1, LatencyHistogram o2) {
+				int byPhase = o1.getPhase().compareTo(o2.getPhase());
+				if (byPhase != 0) {
+					return byPhase;
+				}
+				int byDimension = o1.getDimension().compareTo(o2.getDimension());
+				return byDimension != 0 ? byDimension : o1.getName().compareTo(o2.getName());
+			}
+		});
+
+		return result;
+	}
+}
@@ -0,0 +1,95 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moments in the life of a dynamically provisioned {@link CompoundSlave}, used by {@link QueueWaitAttribution} to tell how long a build waited
+ * for it.
+ *
+ * @author pupssman
+ */
+public final class ProvisioningTimeline {
+	private final long planned;
+	private final boolean fromPool;
+	private volatile long assembled = 0;
+	private volatile long launched = 0;
+	private volatile long idleSince = 0;
+	private final AtomicLong enslaveMillis = new AtomicLong();
+	private final AtomicInteger builds = new AtomicInteger();
+
+	/**
+	 * @param planned
+	 *            when the compound was planned for the {@link hudson.slaves.NodeProvisioner}
+	 * @param fromPool
+	 *            whether it was handed out pre-assembled, in which case it is also assembled at that moment
+	 */
+	public ProvisioningTimeline(long planned, boolean fromPool) {
+		this.planned = planned;
+		this.fromPool = fromPool;
+		if (fromPool) {
+			this.assembled = planned;
+		}
+	}
+
+	public void assembled() {
+		assembled = System.currentTimeMillis();
+	}
+
+	public void launched() {
+		launched = System.currentTimeMillis();
+	}
+
+	public void enslaved(long millis) {
+		enslaveMillis.addAndGet(millis);
+	}
+
+	/**
+	 * Marks a reusable compound ready for the next build, see {@link CompoundRetentionStrategy}
+	 */
+	public void idle() {
+		idleSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts a build started on the compound
+	 *
+	 * @return number of the build, starting with <b>1</b>; only the first one waited for provisioning and launch
+	 */
+	public int attribute() {
+		return builds.incrementAndGet();
+	}
+
+	public long getPlanned() {
+		return planned;
+	}
+
+	public boolean isFromPool() {
+		return fromPool;
+	}
+
+	/**
+	 * @return <b>0</b> if not assembled yet
+	 */
+	public long getAssembled() {
+		return assembled;
+	}
+
+	/**
+	 * @return <b>0</b> if not launched yet
+	 */
+	public long getLaunched() {
+		return launched;
+	}
+
+	/**
+	 * @return when the compound last became ready for another build, <b>0</b> if it has not served any yet
+	 */
+	public long getIdleSince() {
+		return idleSince;
+	}
+
+	public long getEnslaveMillis() {
+		return enslaveMillis.get();
+	}
+}
@@ -0,0 +1,110 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.InvisibleAction;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * How the queue time of a build that ran on a dynamically provisioned {@link CompoundSlave} splits up.
+ *
+ * Whatever is not attributed to provisioning or launch was spent waiting for some other reason, e.g. for a free compound or for capacity.
+ *
+ * @author pupssman
+ */
+@ExportedBean
+public class QueueWaitAction extends InvisibleAction {
+	private final String label;
+	private final String node;
+	private final boolean fromPool;
+	private final int build;
+	private final long queueMillis;
+	private final long provisioningMillis;
+	private final long launchMillis;
+	private final long enslaveMillis;
+	private final long idleMillis;
+
+	public QueueWaitAction(String label, String node, boolean fromPool, int build, long queueMillis, long provisioningMillis, long launchMillis,
+			long enslaveMillis, long idleMillis) {
+		this.label = label;
+		this.node = node;
+		this.fromPool = fromPool;
+		this.build = build;
+		this.queueMillis = queueMillis;
+		this.provisioningMillis = provisioningMillis;
+		this.launchMillis = launchMillis;
+		this.enslaveMillis = enslaveMillis;
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * @return label of the compound's configuration
+	 */
+	@Exported
+	public String getLabel() {
+		return label;
+	}
+
+	@Exported
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * @return <b>true</b> if the compound came pre-assembled from the {@link CompoundPool}
+	 */
+	@Exported
+	public boolean isFromPool() {
+		return fromPool;
+	}
+
+	/**
+	 * @return number of the build on the compound, starting with <b>1</b>; builds after the first one ran on a reused compound
+	 */
+	@Exported
+	public int getBuild() {
+		return build;
+	}
+
+	@Exported
+	public long getQueueMillis() {
+		return queueMillis;
+	}
+
+	/**
+	 * @return part of the queue time spent while the compound was being assembled
+	 */
+	@Exported
+	public long getProvisioningMillis() {
+		return provisioningMillis;
+	}
+
+	/**
+	 * @return part of the queue time spent while the compound was launching, enslaving included
+	 */
+	@Exported
+	public long getLaunchMillis() {
+		return launchMillis;
+	}
+
+	/**
+	 * @return time spent enslaving sub-slaves during the launch
+	 */
+	@Exported
+	public long getEnslaveMillis() {
+		return enslaveMillis;
+	}
+
+	/**
+	 * @return part of the queue time of a build on a reused compound spent after the compound became idle, <b>0</b> for the first build
+	 */
+	@Exported
+	public long getIdleMillis() {
+		return idleMillis;
+	}
+
+	@Exported
+	public long getOtherMillis() {
+		return Math.max(0, queueMillis - provisioningMillis - launchMillis - idleMillis);
+	}
+}
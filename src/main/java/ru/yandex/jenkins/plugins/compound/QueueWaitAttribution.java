@@ -0,0 +1,93 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.WorkUnit;
+
+import java.text.MessageFormat;
+import java.util.logging.Logger;
+
+/**
+ * Attributes the queue time of builds starting on a dynamically provisioned {@link CompoundSlave} to its provisioning and launch, see
+ * {@link QueueWaitAction}.
+ *
+ * Only the first build on a compound waited for these; later builds on a reused compound get the time from the compound becoming idle to the
+ * build starting instead.
+ *
+ * Results are also aggregated per configuration label in {@link ProvisioningMetrics}.
+ *
+ * @author pupssman
+ */
+@Extension
+public class QueueWaitAttribution extends RunListener<Run<?, ?>> {
+	private static final Logger logger = Logger.getLogger(QueueWaitAttribution.class.getCanonicalName());
+
+	@Override
+	public void onStarted(Run<?, ?> run, TaskListener listener) {
+		Executor executor = Executor.currentExecutor();
+
+		if (executor == null || executor.getCurrentWorkUnit() == null) {
+			return;
+		}
+
+		Node node = executor.getOwner().getNode();
+
+		if (!(node instanceof CompoundSlave)) {
+			return;
+		}
+
+		ProvisioningTimeline timeline = ((CompoundSlave) node).getTimeline();
+
+		if (timeline == null) {
+			return;
+		}
+
+		int build = timeline.attribute();
+
+		WorkUnit workUnit = executor.getCurrentWorkUnit();
+		long queued = workUnit.context.item.getInQueueSince();
+		long started = System.currentTimeMillis();
+		long queue = Math.max(0, started - queued);
+		String label = node.getLabelString();
+		ProvisioningMetrics metrics = ProvisioningMetrics.get();
+
+		if (build > 1) {
+			// the compound was assembled and launched for an earlier build
+			long idle = timeline.getIdleSince() > 0 ? overlap(queued, started, timeline.getIdleSince(), started) : 0;
+
+			run.addAction(new QueueWaitAction(label, node.getNodeName(), timeline.isFromPool(), build, queue, 0, 0, 0, idle));
+			metrics.recordMillis(ProvisioningMetrics.QUEUE, label, null, queue, true);
+
+			logger.fine(MessageFormat.format("{0} queued for {1} ms on reused {2}, {3} ms of it after the compound became idle",
+					run.getFullDisplayName(), queue, node.getNodeName(), idle));
+			return;
+		}
+
+		long assembled = timeline.getAssembled() > 0 ? timeline.getAssembled() : started;
+		long launched = timeline.getLaunched() > 0 ? timeline.getLaunched() : started;
+
+		long provisioning = overlap(queued, started, timeline.getPlanned(), assembled);
+		long launch = overlap(queued, started, assembled, launched);
+
+		run.addAction(new QueueWaitAction(label, node.getNodeName(), timeline.isFromPool(), build, queue, provisioning, launch,
+				timeline.getEnslaveMillis(), 0));
+
+		metrics.recordMillis(ProvisioningMetrics.QUEUE, label, null, queue, true);
+		metrics.recordMillis(ProvisioningMetrics.QUEUE_PROVISIONING, label, null, provisioning, true);
+		metrics.recordMillis(ProvisioningMetrics.QUEUE_LAUNCH, label, null, launch, true);
+
+		logger.fine(MessageFormat.format("{0} queued for {1} ms on {2}: {3} ms provisioning, {4} ms launching", run.getFullDisplayName(), queue,
+				node.getNodeName(), provisioning, launch));
+	}
+
+	/**
+	 * @return length of the intersection of the two intervals
+	 */
+	private static long overlap(long from1, long to1, long from2, long to2) {
+		return Math.max(0, Math.min(to1, to2) - Math.max(from1, from2));
+	}
+}
@@ -0,0 +1,148 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.XmlFile;
+import hudson.model.Node;
+import hudson.model.Saveable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Names of the sub-slaves {@link CompoundCloud} has added to {@link Jenkins}, whether they are playing roles in compounds, parked in
+ * {@link SubSlavePool} or registered by an assembly that has not made it into {@link Jenkins} yet.
+ *
+ * Compounds and their sub-slaves survive restarts, but in-flight assemblies and parked sub-slaves do not; the journal is what tells their
+ * leftovers from sub-slaves added by hand, see {@link CompoundReconciler}.
+ *
+ * Nodes a backend has delivered to an assembly are journaled whole as soon as they arrive, since {@link Jenkins} does not know them until the
+ * assembly registers them; they are pending until then. Names are journaled before the nodes are registered, so a restart in between can not
+ * lose them either. Nodes the backend has only planned are not journaled: there is nothing to tear down yet.
+ *
+ * The journal is kept in <b>compound-sub-slaves.xml</b> under the Jenkins home. Names of nodes gone from {@link Jenkins} are dropped whenever
+ * it is saved, unless the nodes are pending.
+ *
+ * @author pupssman
+ */
+public final class SubSlaveJournal implements Saveable {
+	private static final Logger logger = Logger.getLogger(SubSlaveJournal.class.getCanonicalName());
+
+	private static SubSlaveJournal instance;
+
+	private final Set<String> subSlaves = new TreeSet<String>();
+	// name -> node delivered by a backend and not registered yet
+	private final Map<String, Node> pending = new TreeMap<String, Node>();
+
+	public static synchronized SubSlaveJournal get() {
+		if (instance == null) {
+			instance = new SubSlaveJournal();
+
+			XmlFile file = getConfigFile();
+			if (file.exists()) {
+				try {
+					file.unmarshal(instance);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to load compound sub-slave journal, starting from scratch", e);
+				}
+			}
+		}
+
+		return instance;
+	}
+
+	private static XmlFile getConfigFile() {
+		return new XmlFile(new File(Jenkins.getInstance().getRootDir(), "compound-sub-slaves.xml"));
+	}
+
+	/**
+	 * @param node
+	 *            just delivered by a backend, not registered in {@link Jenkins} yet
+	 */
+	public synchronized void deliver(Node node) {
+		pending.put(node.getNodeName(), node);
+		saveQuietly();
+	}
+
+	/**
+	 * @param names
+	 *            of the sub-slaves about to be added to {@link Jenkins}
+	 */
+	public synchronized void record(Collection<String> names) {
+		if (subSlaves.addAll(names)) {
+			prune();
+			saveQuietly();
+		}
+	}
+
+	/**
+	 * @param names
+	 *            of the sub-slaves added to {@link Jenkins}, or torn down before they were
+	 */
+	public synchronized void forget(Collection<String> names) {
+		if (pending.keySet().removeAll(names)) {
+			saveQuietly();
+		}
+	}
+
+	/**
+	 * @return nodes delivered by backends that never made it into {@link Jenkins}
+	 */
+	public synchronized List<Node> getPending() {
+		return new ArrayList<Node>(pending.values());
+	}
+
+	/**
+	 * @return names of the journaled sub-slaves
+	 */
+	public synchronized Set<String> getSubSlaves() {
+		return new TreeSet<String>(subSlaves);
+	}
+
+	/**
+	 * Drops the names of nodes gone from {@link Jenkins} and saves the journal if any were
+	 */
+	public synchronized void compact() {
+		if (prune()) {
+			saveQuietly();
+		}
+	}
+
+	private boolean prune() {
+		Jenkins jenkins = Jenkins.getInstance();
+		boolean pruned = false;
+
+		for (Iterator<String> iterator = subSlaves.iterator(); iterator.hasNext();) {
+			String name = iterator.next();
+			if (jenkins.getNode(name) == null && !pending.containsKey(name)) {
+				iterator.remove();
+				pruned = true;
+			}
+		}
+
+		return pruned;
+	}
+
+	@Override
+	public synchronized void save() throws IOException {
+		getConfigFile().write(this);
+	}
+
+	private void saveQuietly() {
+		try {
+			save();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to save compound sub-slave journal", e);
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.model.labels.LabelAtom;
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Parking of healthy sub-slaves released by failed or terminated compounds, so that the next compound needing the same backend label atom gets
+ * them without asking the backend cloud.
+ *
+ * Parked sub-slaves stay registered in {@link Jenkins}, reserved for the pool as {@link #OWNER}; their workspaces are wiped on parking. Sub-slaves parked for
+ * longer than {@link #getTtlMinutes()} are torn down by {@link CompoundPoolMaintenance}. A TTL of <b>0</b> disables parking.
+ *
+ * @author pupssman
+ */
+@ExportedBean
+public final class SubSlavePool {
+	public static final int DEFAULT_TTL_MINUTES = 0;
+
+	/**
+	 * Owner of the reservations of parked sub-slaves, see {@link SubSlaveReservations}
+	 */
+	public static final String OWNER = "sub-slave pool";
+
+	private static final Logger logger = Logger.getLogger(SubSlavePool.class.getCanonicalName());
+
+	private static final SubSlavePool INSTANCE = new SubSlavePool();
+
+	private volatile int ttlMinutes = DEFAULT_TTL_MINUTES;
+
+	// guarded by this, oldest first
+	private final LinkedList<Parked> parked = new LinkedList<Parked>();
+	private final Set<String> wiping = new HashSet<String>();
+	private long parkings = 0;
+	private long reuses = 0;
+	private long expirations = 0;
+
+	private static final class Parked {
+		private final String name;
+		private final long since;
+
+		private Parked(String name) {
+			this.name = name;
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+	private SubSlavePool() {
+	}
+
+	public static SubSlavePool get() {
+		return INSTANCE;
+	}
+
+	public void setTtlMinutes(int ttlMinutes) {
+		this.ttlMinutes = ttlMinutes;
+	}
+
+	/**
+	 * Parks a sub-slave the compound no longer needs instead of tearing it down.
+	 *
+	 * The pool takes the reservation of the sub-slave over from the compound first, so the queue never gets to see it free, see
+	 * {@link SubSlaveReservations#transfer(String, String, String)}. Its workspaces are wiped on {@link Teardown} threads; the sub-slave is
+	 * parked once they are, and torn down if they can not be.
+	 *
+	 * @param node
+	 *            sub-slave registered in {@link Jenkins}
+	 * @param compound
+	 *            name of the compound holding the sub-slave
+	 * @return <b>false</b> if parking is disabled, the node is not healthy or other compounds still hold shares of it; the compound keeps its
+	 *         reservation then
+	 */
+	public boolean park(final Node node, String compound) {
+		if (ttlMinutes <= 0 || !(node instanceof Slave) || node instanceof CompoundSlave || !isHealthy(node)) {
+			return false;
+		}
+
+		if (!SubSlaveReservations.get().transfer(node.getNodeName(), compound, OWNER)) {
+			return false;
+		}
+
+		node.toComputer().setAcceptingTasks(false);
+
+		synchronized (this) {
+			wiping.add(node.getNodeName());
+		}
+
+		Teardown.get().submit(new Runnable() {
+			@Override
+			public void run() {
+				wipe((Slave) node);
+			}
+		});
+
+		return true;
+	}
+
+	private void wipe(Slave node) {
+		boolean wiped = false;
+
+		try {
+			FilePath workspaceRoot = node.getWorkspaceRoot();
+			if (workspaceRoot != null && workspaceRoot.exists()) {
+				workspaceRoot.deleteContents();
+			}
+			wiped = true;
+		} catch (IOException e) {
+			logger.log(Level.INFO, MessageFormat.format("Failed to wipe workspaces of {0}, not parking it", node.getNodeName()), e);
+		} catch (InterruptedException e) {
+			logger.log(Level.INFO, MessageFormat.format("Interrupted while wiping workspaces of {0}, not parking it", node.getNodeName()), e);
+		} finally {
+			synchronized (this) {
+				wiping.remove(node.getNodeName());
+				if (wiped) {
+					parked.addLast(new Parked(node.getNodeName()));
+					parkings++;
+				}
+			}
+		}
+
+		if (wiped) {
+			logger.info(MessageFormat.format("Parked sub-slave {0} for reuse", node.getNodeName()));
+		} else {
+			tearDown(Collections.<Node> singletonList(node));
+		}
+	}
+
+	/**
+	 * Takes healthy parked sub-slaves, most recently parked first; dead ones found on the way are torn down
+	 *
+	 * @param labelAtom
+	 *            sub-slaves are needed for
+	 * @param wanted
+	 *            number of sub-slaves
+	 * @param compound
+	 *            name of the compound the sub-slaves are taken for, their reservations are passed on to it
+	 * @return up to <b>wanted</b> sub-slaves, still registered in {@link Jenkins}
+	 */
+	public List<Node> take(LabelAtom labelAtom, int wanted, String compound) {
+		List<Node> result = new ArrayList<Node>();
+		List<Node> dead = new ArrayList<Node>();
+		Jenkins jenkins = Jenkins.getInstance();
+
+		synchronized (this) {
+			Iterator<Parked> iterator = parked.descendingIterator();
+
+			while (iterator.hasNext() && result.size() < wanted) {
+				Node node = jenkins.getNode(iterator.next().name);
+
+				if (node == null) {
+					iterator.remove();
+				} else if (labelAtom.matches(node.getAssignedLabels())) {
+					iterator.remove();
+					if (isHealthy(node)) {
+						SubSlaveReservations.get().transfer(node.getNodeName(), OWNER, compound);
+						reuses++;
+						result.add(node);
+					} else {
+						dead.add(node);
+					}
+				}
+			}
+		}
+
+		tearDown(dead);
+
+		if (!result.isEmpty()) {
+			logger.info(MessageFormat.format("Reusing {0} parked sub-slaves for label atom {1}", result.size(), labelAtom));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Tears down sub-slaves parked for longer than the TTL
+	 */
+	public void evictExpired() {
+		List<Node> expired = new ArrayList<Node>();
+		long deadline = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ttlMinutes);
+		Jenkins jenkins = Jenkins.getInstance();
+
+		synchronized (this) {
+			Iterator<Parked> iterator = parked.iterator();
+
+			while (iterator.hasNext()) {
+				Parked candidate = iterator.next();
+
+				if (ttlMinutes <= 0 || candidate.since < deadline) {
+					iterator.remove();
+					expirations++;
+
+					Node node = jenkins.getNode(candidate.name);
+					if (node != null) {
+						expired.add(node);
+					}
+				}
+			}
+		}
+
+		tearDown(expired);
+	}
+
+	/**
+	 * @param name
+	 *            of the sub-slave
+	 * @return whether the sub-slave is parked now or being wiped to be parked
+	 */
+	public synchronized boolean isParked(String name) {
+		if (wiping.contains(name)) {
+			return true;
+		}
+		for (Parked candidate : parked) {
+			if (candidate.name.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isHealthy(Node node) {
+		Computer computer = node.toComputer();
+		return computer != null && computer.isOnline() && Jenkins.getInstance().getNode(node.getNodeName()) == node;
+	}
+
+	private static void tearDown(List<Node> nodes) {
+		for (Node node : nodes) {
+			// not accepting tasks since it was parked
+			SubSlaveReservations.get().release(node.getNodeName(), OWNER);
+		}
+
+		if (!nodes.isEmpty()) {
+			Teardown.get().start(nodes, true, new LogTaskListener(logger, Level.WARNING));
+		}
+	}
+
+	@Exported
+	public int getTtlMinutes() {
+		return ttlMinutes;
+	}
+
+	@Exported
+	public synchronized int getParked() {
+		return parked.size();
+	}
+
+	@Exported
+	public synchronized long getParkings() {
+		return parkings;
+	}
+
+	@Exported
+	public synchronized long getReuses() {
+		return reuses;
+	}
+
+	@Exported
+	public synchronized long getExpirations() {
+		return expirations;
+	}
+
+	/**
+	 * @return label string -&gt; number of sub-slaves parked with it
+	 */
+	public synchronized Map<String, Integer> getParkedByLabel() {
+		Map<String, Integer> result = new TreeMap<String, Integer>();
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (Parked candidate : parked) {
+			Node node = jenkins.getNode(candidate.name);
+			if (node != null) {
+				Integer count = result.get(node.getLabelString());
+				result.put(node.getLabelString(), (count == null ? 0 : count) + 1);
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,193 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Periodically reclaims sub-slaves leaked by cleanups that failed half-way or by compounds removed without being terminated.
+ *
+ * A sub-slave is an orphan when no live compound uses it: neither a compound in {@link Jenkins}, nor one in a {@link CompoundPool}, nor an
+ * assembly running now. Orphans from {@link SubSlaveJournal} are torn down in parallel by {@link Teardown}; other nodes reserved for compounds
+ * that are gone were added by hand, so their reservations are just released, see {@link SubSlaveReservations}.
+ *
+ * A node is only reaped when found orphaned by two runs in a row, so compounds in between an assembly and {@link Jenkins} are left alone.
+ *
+ * @author pupssman
+ */
+@Extension
+@ExportedBean
+public class SubSlaveReaper extends AsyncPeriodicWork {
+	// names of the orphans found by the last run
+	private Set<String> suspects = new HashSet<String>();
+
+	private final AtomicLong reaped = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong reclaimedExecutors = new AtomicLong();
+
+	public SubSlaveReaper() {
+		super("Compound sub-slave reaper");
+	}
+
+	public static SubSlaveReaper get() {
+		return Jenkins.getInstance().getExtensionList(AsyncPeriodicWork.class).get(SubSlaveReaper.class);
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		Jenkins jenkins = Jenkins.getInstance();
+		Set<String> alive = CompoundAssembly.getInFlight();
+		Set<String> used = new HashSet<String>(alive);
+
+		List<CompoundSlave> compounds = new ArrayList<CompoundSlave>();
+		for (Node node : jenkins.getNodes()) {
+			if (node instanceof CompoundSlave) {
+				compounds.add((CompoundSlave) node);
+			}
+		}
+		for (Cloud cloud : jenkins.clouds) {
+			if (cloud instanceof CompoundCloud) {
+				compounds.addAll(((CompoundCloud) cloud).getPool().getReady());
+			}
+		}
+
+		for (CompoundSlave compound : compounds) {
+			alive.add(compound.getNodeName());
+			for (List<String> names : compound.getSubSlaveNames().values()) {
+				used.addAll(names);
+			}
+		}
+
+		Set<String> journaled = SubSlaveJournal.get().getSubSlaves();
+		Set<String> orphans = new HashSet<String>();
+		List<Node> toTearDown = new ArrayList<Node>();
+
+		for (Node node : jenkins.getNodes()) {
+			String name = node.getNodeName();
+
+			if (node instanceof CompoundSlave || used.contains(name) || SubSlavePool.get().isParked(name)) {
+				continue;
+			}
+
+			List<String> owners = SubSlaveReservations.get().getOwners(name);
+			if (isHeld(owners, alive)) {
+				continue;
+			}
+			if (owners.isEmpty() && !journaled.contains(name)) {
+				// added by hand and free
+				continue;
+			}
+
+			orphans.add(name);
+			if (!suspects.contains(name)) {
+				continue;
+			}
+
+			for (String owner : owners) {
+				SubSlaveReservations.get().release(name, owner);
+			}
+
+			if (journaled.contains(name)) {
+				listener.getLogger().println(MessageFormat.format("Sub-slave {0} is not used by any compound, tearing it down", name));
+				toTearDown.add(node);
+			} else {
+				listener.getLogger().println(MessageFormat.format("Releasing {0} reserved for compounds {1} that are gone", name, owners));
+				if (node.toComputer() != null) {
+					node.toComputer().setAcceptingTasks(true);
+				}
+				released.incrementAndGet();
+			}
+		}
+
+		suspects = orphans;
+
+		if (!toTearDown.isEmpty()) {
+			int failures = Teardown.get().run(toTearDown, true, listener);
+			reaped.addAndGet(toTearDown.size() - failures);
+			failed.addAndGet(failures);
+			// failed ones are found again next time, so only the ones actually gone count
+			reclaimedExecutors.addAndGet(countGone(toTearDown));
+		}
+
+		SubSlaveJournal.get().compact();
+	}
+
+	/**
+	 * @return whether any of the owners is alive
+	 */
+	private static boolean isHeld(List<String> owners, Set<String> alive) {
+		for (String owner : owners) {
+			if (alive.contains(owner)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return executors of the nodes no longer in {@link Jenkins}
+	 */
+	private static int countGone(List<Node> nodes) {
+		Jenkins jenkins = Jenkins.getInstance();
+		int result = 0;
+
+		for (Node node : nodes) {
+			if (jenkins.getNode(node.getNodeName()) == null) {
+				result += node.getNumExecutors();
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return TimeUnit.MINUTES.toMillis(5);
+	}
+
+	/**
+	 * @return sub-slaves torn down
+	 */
+	@Exported
+	public long getReaped() {
+		return reaped.get();
+	}
+
+	/**
+	 * @return nodes added by hand handed back to the queue
+	 */
+	@Exported
+	public long getReleased() {
+		return released.get();
+	}
+
+	@Exported
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return executors of the sub-slaves torn down
+	 */
+	@Exported
+	public long getReclaimedExecutors() {
+		return reclaimedExecutors.get();
+	}
+}
@@ -0,0 +1,249 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.labels.LabelAtom;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Sub-slaves reserved for compounds, either being assembled or already enslaved.
+ *
+ * A sub-slave is reserved before it is added to {@link jenkins.model.Jenkins}, so no task from the queue can ever be scheduled onto it; the
+ * {@link Dispatcher} turns all of them away until the last reservation of the sub-slave is released.
+ *
+ * A compound either reserves a whole sub-slave or a share of a number of its executors. Sub-slaves reserved in shares only are handed out to
+ * other compounds for as long as they have enough executors left, see {@link #share(LabelAtom, int, String, int)}.
+ *
+ * @author pupssman
+ */
+public final class SubSlaveReservations {
+	/**
+	 * Number of executors of a reservation of the whole sub-slave
+	 */
+	public static final int WHOLE = 0;
+
+	private static final SubSlaveReservations INSTANCE = new SubSlaveReservations();
+
+	// guarded by this; sub-slave name -> compound name -> reserved executors
+	private final Map<String, Map<String, Integer>> reservations = new HashMap<String, Map<String, Integer>>();
+
+	private SubSlaveReservations() {
+	}
+
+	public static SubSlaveReservations get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param subSlave
+	 *            name of the sub-slave
+	 * @param compound
+	 *            name of the compound the sub-slave is reserved for
+	 * @param executors
+	 *            number of executors reserved, {@link #WHOLE} for the whole sub-slave
+	 */
+	public synchronized void reserve(String subSlave, String compound, int executors) {
+		Map<String, Integer> owners = reservations.get(subSlave);
+
+		if (owners == null) {
+			owners = new LinkedHashMap<String, Integer>();
+			reservations.put(subSlave, owners);
+		}
+
+		owners.put(compound, executors);
+	}
+
+	/**
+	 * Reserves the whole sub-slave, unless the compound holds a reservation of it already
+	 *
+	 * @param subSlave
+	 *            name of the sub-slave
+	 * @param compound
+	 *            name of the compound the sub-slave is reserved for
+	 */
+	public synchronized void reserve(String subSlave, String compound) {
+		if (!isReserved(subSlave, compound)) {
+			reserve(subSlave, compound, WHOLE);
+		}
+	}
+
+	/**
+	 * @param subSlave
+	 *            name of the sub-slave
+	 * @param compound
+	 *            name of the compound releasing its reservation
+	 * @return <b>true</b> if nobody else holds a reservation of the sub-slave, so it may be handed back to the queue or torn down
+	 */
+	public synchronized boolean release(String subSlave, String compound) {
+		Map<String, Integer> owners = reservations.get(subSlave);
+
+		if (owners == null) {
+			return true;
+		}
+
+		owners.remove(compound);
+
+		if (owners.isEmpty()) {
+			reservations.remove(subSlave);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Passes the reservation of the whole sub-slave from a compound on to another owner at once, so the sub-slave is never free in between
+	 *
+	 * @param subSlave
+	 *            name of the sub-slave
+	 * @param compound
+	 *            name of the compound giving its reservation up
+	 * @param owner
+	 *            taking the sub-slave over
+	 * @return <b>false</b> if other compounds still hold reservations of the sub-slave; nothing is changed then
+	 */
+	public synchronized boolean transfer(String subSlave, String compound, String owner) {
+		Map<String, Integer> owners = reservations.get(subSlave);
+
+		if (owners != null) {
+			for (String other : owners.keySet()) {
+				if (!other.equals(compound)) {
+					return false;
+				}
+			}
+		}
+
+		owners = new LinkedHashMap<String, Integer>();
+		owners.put(owner, WHOLE);
+		reservations.put(subSlave, owners);
+
+		return true;
+	}
+
+	/**
+	 * Takes shares of registered sub-slaves reserved by other compounds in shares only.
+	 *
+	 * @param labelAtom
+	 *            sub-slaves are needed for
+	 * @param executors
+	 *            number of executors per share
+	 * @param compound
+	 *            name of the compound the shares are reserved for
+	 * @param wanted
+	 *            number of sub-slaves
+	 * @return up to <b>wanted</b> distinct sub-slaves, not shared with the compound before
+	 */
+	public synchronized List<Node> share(LabelAtom labelAtom, int executors, String compound, int wanted) {
+		List<Node> result = new ArrayList<Node>();
+
+		if (executors <= WHOLE) {
+			return result;
+		}
+
+		Jenkins jenkins = Jenkins.getInstance();
+
+		for (Map.Entry<String, Map<String, Integer>> reservation : reservations.entrySet()) {
+			if (result.size() >= wanted) {
+				break;
+			}
+
+			Map<String, Integer> owners = reservation.getValue();
+			Node node = jenkins.getNode(reservation.getKey());
+
+			if (node == null || owners.containsKey(compound) || !labelAtom.matches(node.getAssignedLabels())) {
+				continue;
+			}
+
+			Computer computer = node.toComputer();
+			if (computer == null || !computer.isOnline()) {
+				continue;
+			}
+
+			int spare = node.getNumExecutors();
+			for (int reserved : owners.values()) {
+				spare -= reserved == WHOLE ? node.getNumExecutors() : reserved;
+			}
+
+			if (spare >= executors) {
+				owners.put(compound, executors);
+				result.add(node);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param subSlave
+	 *            name of the sub-slave
+	 * @param compound
+	 *            name of the compound
+	 * @return whether the compound holds a share of the sub-slave rather than all of it
+	 */
+	public synchronized boolean isShared(String subSlave, String compound) {
+		Map<String, Integer> owners = reservations.get(subSlave);
+		Integer executors = owners == null ? null : owners.get(compound);
+		return executors != null && executors > WHOLE;
+	}
+
+	private boolean isReserved(String subSlave, String compound) {
+		Map<String, Integer> owners = reservations.get(subSlave);
+		return owners != null && owners.containsKey(compound);
+	}
+
+	/**
+	 * @param subSlave
+	 *            name of the sub-slave
+	 * @return names of the compounds the sub-slave is reserved for, empty if it is not reserved
+	 */
+	public synchronized List<String> getOwners(String subSlave) {
+		Map<String, Integer> owners = reservations.get(subSlave);
+		return owners == null ? new ArrayList<String>() : new ArrayList<String>(owners.keySet());
+	}
+
+	/**
+	 * Keeps tasks off the reserved sub-slaves: compounds run their commands on sub-slaves through the channels, never through the queue
+	 */
+	@Extension
+	public static class Dispatcher extends QueueTaskDispatcher {
+		@Override
+		public CauseOfBlockage canTake(Node node, BuildableItem item) {
+			List<String> owners = get().getOwners(node.getNodeName());
+
+			if (owners.isEmpty()) {
+				return null;
+			}
+
+			return new Reserved(node.getNodeName(), StringUtils.join(owners, ", "));
+		}
+	}
+
+	public static final class Reserved extends CauseOfBlockage {
+		private final String subSlave;
+		private final String compounds;
+
+		private Reserved(String subSlave, String compounds) {
+			this.subSlave = subSlave;
+			this.compounds = compounds;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return MessageFormat.format("{0} is a part of {1}", subSlave, compounds);
+		}
+	}
+}
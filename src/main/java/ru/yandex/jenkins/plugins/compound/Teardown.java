@@ -0,0 +1,380 @@
+package ru.yandex.jenkins.plugins.compound;
+
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.AbstractCloudSlave;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Tears sub-slaves down in parallel.
+ *
+ * At most {@link #getConcurrency()} nodes are terminated at once; every termination attempt is interrupted after {@link #getTimeoutSeconds()}
+ * and retried up to {@link #getAttempts()} times in total, but never while the interrupted attempt is still running. Outcomes are reported to the
+ * given {@link TaskListener}.
+ *
+ * @author pupssman
+ */
+@ExportedBean
+public final class Teardown {
+	public static final int DEFAULT_CONCURRENCY = 8;
+	public static final int DEFAULT_TIMEOUT_SECONDS = 300;
+	public static final int DEFAULT_ATTEMPTS = 2;
+
+	private static final Teardown INSTANCE = new Teardown();
+
+	private final ThreadPoolExecutor executor;
+	private final ListeningExecutorService service;
+	private final ScheduledExecutorService scheduler;
+
+	private volatile int timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
+	private volatile int attempts = DEFAULT_ATTEMPTS;
+
+	private final AtomicLong teardowns = new AtomicLong();
+	private final AtomicLong terminated = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+	private final AtomicLong lastMillis = new AtomicLong();
+	private final AtomicLong maxMillis = new AtomicLong();
+
+	private Teardown() {
+		executor = new ThreadPoolExecutor(DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("compound-teardown-%d").setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
+		service = MoreExecutors.listeningDecorator(executor);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("compound-teardown-timer").setDaemon(true)
+				.build());
+	}
+
+	public static Teardown get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Applies the global configuration
+	 *
+	 * @param concurrency
+	 *            nodes terminated at once
+	 * @param timeoutSeconds
+	 *            per termination attempt, <b>0</b> for none
+	 * @param attempts
+	 *            per node
+	 */
+	public synchronized void configure(int concurrency, int timeoutSeconds, int attempts) {
+		int actual = Math.max(1, concurrency);
+
+		if (actual > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(actual);
+			executor.setCorePoolSize(actual);
+		} else {
+			executor.setCorePoolSize(actual);
+			executor.setMaximumPoolSize(actual);
+		}
+
+		this.timeoutSeconds = Math.max(0, timeoutSeconds);
+		this.attempts = Math.max(1, attempts);
+	}
+
+	/**
+	 * Runs a chore of taking compounds apart, e.g. wiping a sub-slave, on the teardown threads instead of the caller's
+	 */
+	ListenableFuture<?> submit(Runnable chore) {
+		return service.submit(chore);
+	}
+
+	/**
+	 * Starts terminating the nodes.
+	 *
+	 * {@link AbstractCloudSlave}s are terminated; other nodes are removed from {@link Jenkins} if <b>removeOthers</b> is set and left alone
+	 * otherwise.
+	 *
+	 * @param nodes
+	 *            to tear down
+	 * @param removeOthers
+	 *            whether to remove nodes that can not be terminated
+	 * @param listener
+	 *            to report progress and results to
+	 * @return future of the number of nodes that could not be torn down
+	 */
+	public ListenableFuture<Integer> start(Collection<? extends Node> nodes, boolean removeOthers, final TaskListener listener) {
+		final long started = System.currentTimeMillis();
+		List<ListenableFuture<Boolean>> outcomes = new ArrayList<ListenableFuture<Boolean>>();
+
+		for (Node node : nodes) {
+			if (node instanceof AbstractCloudSlave || removeOthers) {
+				outcomes.add(attempt(node, 1, listener));
+			}
+		}
+
+		final int total = outcomes.size();
+
+		return Futures.transform(Futures.successfulAsList(outcomes), new AsyncFunction<List<Boolean>, Integer>() {
+			@Override
+			public ListenableFuture<Integer> apply(List<Boolean> input) {
+				int failures = 0;
+				for (Boolean outcome : input) {
+					if (!Boolean.TRUE.equals(outcome)) {
+						failures++;
+					}
+				}
+
+				long elapsed = System.currentTimeMillis() - started;
+				record(total - failures, failures, elapsed);
+
+				if (total > 0) {
+					listener.getLogger().println(MessageFormat.format("Tore down {0} of {1} sub-slaves in {2} ms", total - failures, total, elapsed));
+				}
+				if (failures > 0) {
+					listener.error(MessageFormat.format("{0} sub-slaves could not be torn down, see above", failures));
+				}
+
+				return Futures.immediateFuture(failures);
+			}
+		});
+	}
+
+	/**
+	 * Tears the nodes down and waits for it
+	 *
+	 * @see #start(Collection, boolean, TaskListener)
+	 * @return number of nodes that could not be torn down
+	 */
+	public int run(Collection<? extends Node> nodes, boolean removeOthers, TaskListener listener) throws InterruptedException {
+		try {
+			return start(nodes, removeOthers, listener).get();
+		} catch (ExecutionException e) {
+			// failures of single nodes are counted, not thrown
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private ListenableFuture<Boolean> attempt(final Node node, final int attempt, final TaskListener listener) {
+		final SettableFuture<Boolean> result = SettableFuture.create();
+
+		final AtomicReference<Future<?>> self = new AtomicReference<Future<?>>();
+		final AtomicReference<ScheduledFuture<?>> timer = new AtomicReference<ScheduledFuture<?>>();
+
+		// completes once the call has really returned, which a timed out call ignoring the interrupt may take a while to do
+		final SettableFuture<Void> finished = SettableFuture.create();
+
+		final ListenableFuture<Void> termination = service.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					if (timeoutSeconds > 0) {
+						// counted from the actual start, so waiting for a free thread does not eat into it
+						timer.set(scheduler.schedule(new Runnable() {
+							@Override
+							public void run() {
+								self.get().cancel(true);
+							}
+						}, timeoutSeconds, TimeUnit.SECONDS));
+					}
+
+					if (node instanceof AbstractCloudSlave) {
+						listener.getLogger().println("Terminating sub-slave " + node.getDisplayName());
+						((AbstractCloudSlave) node).terminate();
+					} else {
+						listener.getLogger().println("Removing node " + node.getDisplayName());
+						Jenkins.getInstance().removeNode(node);
+					}
+					return null;
+				} finally {
+					finished.set(null);
+				}
+			}
+		});
+
+		self.set(termination);
+
+		Futures.addCallback(termination, new FutureCallback<Void>() {
+			@Override
+			public void onSuccess(Void ignored) {
+				cancelTimer(timer);
+				result.set(true);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				cancelTimer(timer);
+				String message = MessageFormat.format("Attempt {0} of {1} to tear down {2} failed", attempt, attempts, node.getDisplayName());
+
+				if (t instanceof CancellationException) {
+					listener.error(message + ": timed out after " + timeoutSeconds + " seconds");
+				} else {
+					t.printStackTrace(listener.error(message));
+				}
+
+				if (attempt < attempts) {
+					retryWhenFinished(node, attempt, listener, finished, result);
+				} else {
+					result.set(false);
+				}
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Retries once the failed attempt has really returned, so that the same node is never terminated twice at once. An attempt still stuck after
+	 * another timeout is given up on.
+	 */
+	private void retryWhenFinished(final Node node, final int attempt, final TaskListener listener, ListenableFuture<Void> finished,
+			final SettableFuture<Boolean> result) {
+		final AtomicBoolean decided = new AtomicBoolean(false);
+
+		if (timeoutSeconds > 0) {
+			final ScheduledFuture<?> grace = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (decided.compareAndSet(false, true)) {
+						listener.error(MessageFormat.format("Attempt {0} to tear down {1} is still running, not retrying", attempt, node.getDisplayName()));
+						result.set(false);
+					}
+				}
+			}, timeoutSeconds, TimeUnit.SECONDS);
+
+			Futures.addCallback(result, new FutureCallback<Boolean>() {
+				@Override
+				public void onSuccess(Boolean outcome) {
+					grace.cancel(false);
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					grace.cancel(false);
+				}
+			});
+		}
+
+		Futures.addCallback(finished, new FutureCallback<Void>() {
+			@Override
+			public void onSuccess(Void ignored) {
+				if (!decided.compareAndSet(false, true)) {
+					return;
+				}
+
+				Futures.addCallback(attempt(node, attempt + 1, listener), new FutureCallback<Boolean>() {
+					@Override
+					public void onSuccess(Boolean outcome) {
+						result.set(outcome);
+					}
+
+					@Override
+					public void onFailure(Throwable t) {
+						result.set(false);
+					}
+				});
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// never failed
+			}
+		});
+	}
+
+	private static void cancelTimer(AtomicReference<ScheduledFuture<?>> timer) {
+		ScheduledFuture<?> scheduled = timer.get();
+		if (scheduled != null) {
+			scheduled.cancel(false);
+		}
+	}
+
+	private void record(int ok, int failures, long elapsed) {
+		teardowns.incrementAndGet();
+		terminated.addAndGet(ok);
+		failed.addAndGet(failures);
+		totalMillis.addAndGet(elapsed);
+		lastMillis.set(elapsed);
+
+		long max = maxMillis.get();
+		while (elapsed > max && !maxMillis.compareAndSet(max, elapsed)) {
+			max = maxMillis.get();
+		}
+	}
+
+	@Exported
+	public int getConcurrency() {
+		return executor.getMaximumPoolSize();
+	}
+
+	@Exported
+	public int getTimeoutSeconds() {
+		return timeoutSeconds;
+	}
+
+	@Exported
+	public int getAttempts() {
+		return attempts;
+	}
+
+	@Exported
+	public int getActiveTasks() {
+		return executor.getActiveCount();
+	}
+
+	@Exported
+	public long getTeardowns() {
+		return teardowns.get();
+	}
+
+	@Exported
+	public long getTerminated() {
+		return terminated.get();
+	}
+
+	@Exported
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return total time spent tearing compounds down
+	 */
+	@Exported
+	public long getTotalMillis() {
+		return totalMillis.get();
+	}
+
+	@Exported
+	public long getLastMillis() {
+		return lastMillis.get();
+	}
+
+	@Exported
+	public long getMaxMillis() {
+		return maxMillis.get();
+	}
+}
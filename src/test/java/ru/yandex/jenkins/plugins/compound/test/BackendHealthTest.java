@@ -0,0 +1,125 @@
+package ru.yandex.jenkins.plugins.compound.test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.Cloud;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import ru.yandex.jenkins.plugins.compound.BackendHealth;
+import ru.yandex.jenkins.plugins.compound.BackendHealth.Breaker;
+import ru.yandex.jenkins.plugins.compound.BackendHealth.State;
+import ru.yandex.jenkins.plugins.compound.test.load.StubCloud;
+
+public class BackendHealthTest {
+
+	@Rule public TestName name = new TestName();
+
+	private StubCloud cloud;
+	private Breaker breaker;
+
+	@Before
+	public void createBreaker() {
+		// breakers are kept until their cloud is removed from Jenkins, so every test gets a cloud of its own
+		cloud = new StubCloud(name.getMethodName(), "backend");
+		breaker = BackendHealth.get().getBreaker(cloud, new LabelAtom("backend"));
+		breaker.setBaseBackoffMillis(200);
+	}
+
+	@After
+	public void shutdownCloud() {
+		cloud.shutdown();
+	}
+
+	@Test
+	public void testOpensOnFailures() throws Exception {
+		assertThat(breaker.getState(), equalTo(State.CLOSED));
+
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		assertThat("too few samples to judge", breaker.getState(), equalTo(State.CLOSED));
+
+		breaker.recordFailure(0);
+
+		assertThat(breaker.getState(), equalTo(State.OPEN));
+		assertThat(breaker.isBackingOff(), is(true));
+		assertThat(breaker.allowRequest(), is(false));
+	}
+
+	@Test
+	public void testSuccessfulProbeCloses() throws Exception {
+		open();
+		awaitBackoff();
+
+		assertThat("probe", breaker.allowRequest(), is(true));
+		assertThat(breaker.getState(), equalTo(State.HALF_OPEN));
+		assertThat("second probe", breaker.allowRequest(), is(false));
+
+		breaker.recordSuccess(100);
+
+		assertThat(breaker.getState(), equalTo(State.CLOSED));
+		assertThat(breaker.getBackoffMillis(), equalTo(0L));
+		assertThat(breaker.allowRequest(), is(true));
+	}
+
+	@Test
+	public void testFailedProbeReopensWithLongerBackoff() throws Exception {
+		open();
+		long backoff = breaker.getBackoffMillis();
+		awaitBackoff();
+
+		assertThat("probe", breaker.allowRequest(), is(true));
+
+		breaker.recordFailure(0);
+
+		assertThat(breaker.getState(), equalTo(State.OPEN));
+		assertThat(breaker.getBackoffMillis(), equalTo(backoff * 2));
+		assertThat(breaker.allowRequest(), is(false));
+	}
+
+	@Test
+	public void testReleasedProbeIsTakenAgain() throws Exception {
+		open();
+		awaitBackoff();
+
+		assertThat("probe", breaker.allowRequest(), is(true));
+		assertThat(breaker.isAvailable(), is(false));
+
+		breaker.releaseProbe();
+
+		assertThat(breaker.getState(), equalTo(State.HALF_OPEN));
+		assertThat(breaker.isAvailable(), is(true));
+		assertThat("probe after release", breaker.allowRequest(), is(true));
+	}
+
+	@Test
+	public void testRetainDropsRemovedClouds() throws Exception {
+		BackendHealth.get().retain(Arrays.<Cloud> asList(cloud));
+		assertThat("configured cloud keeps its breaker", BackendHealth.get().getBreaker(cloud, new LabelAtom("backend")), sameInstance(breaker));
+
+		BackendHealth.get().retain(Collections.<Cloud> emptyList());
+		assertThat(BackendHealth.get().getBreaker(cloud, new LabelAtom("backend")), not(sameInstance(breaker)));
+	}
+
+	private void open() {
+		for (int i = 0; i < 3; i++) {
+			breaker.recordFailure(0);
+		}
+		assertThat(breaker.getState(), equalTo(State.OPEN));
+	}
+
+	private void awaitBackoff() throws InterruptedException {
+		Thread.sleep(Math.max(0, breaker.getOpenUntil() - System.currentTimeMillis()) + 50);
+	}
+}
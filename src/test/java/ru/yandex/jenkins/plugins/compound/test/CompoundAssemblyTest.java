@@ -0,0 +1,125 @@
+package ru.yandex.jenkins.plugins.compound.test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave;
+import ru.yandex.jenkins.plugins.compound.test.load.StubCloud;
+
+public class CompoundAssemblyTest {
+
+	@Rule public JenkinsRule j = new JenkinsRule();
+	@Rule public TestName name = new TestName();
+
+	private final List<StubCloud> backends = new ArrayList<StubCloud>();
+
+	@After
+	public void shutdownBackends() {
+		for (StubCloud backend : backends) {
+			backend.shutdown();
+		}
+	}
+
+	@Test
+	public void testSiblingsAbortedOnFirstFailure() throws Exception {
+		StubCloud roots = stub("root").withFailureRate(1);
+		StubCloud workers = stub("worker").withLatency(10000, 0);
+
+		Collection<PlannedNode> planned = provision(new SlaveEntry(CompoundSlave.ROLE_ROOT, roots.name, "1", "0", "1"), new SlaveEntry("WORKER",
+				workers.name, "2", "0", "1"));
+
+		long started = System.currentTimeMillis();
+
+		try {
+			planned.iterator().next().future.get(30, TimeUnit.SECONDS);
+			fail("Assembly with a failing root should fail");
+		} catch (ExecutionException e) {
+			// expected
+		}
+
+		assertThat("failed without waiting for the workers", System.currentTimeMillis() - started, lessThan(10000L));
+		assertThat(workers.getPlanned(), equalTo(2));
+
+		// workers delivered after the abort are terminated as soon as they materialise
+		awaitTornDown(workers, 30);
+
+		assertThat(workers.getDelivered(), equalTo(2));
+		assertThat(workers.getAlive(), equalTo(0));
+	}
+
+	@Test
+	public void testOnlyMissingMembersRetried() throws Exception {
+		StubCloud roots = stub("root");
+		StubCloud workers = stub("worker").withPartialDelivery(1);
+
+		Collection<PlannedNode> planned = provision(new SlaveEntry(CompoundSlave.ROLE_ROOT, roots.name, "1", "0", "1"), new SlaveEntry("WORKER",
+				workers.name, "2", "0", "2"));
+
+		Node node = planned.iterator().next().future.get(30, TimeUnit.SECONDS);
+		assertThat(node, instanceOf(CompoundSlave.class));
+
+		try {
+			assertThat(((CompoundSlave) node).getSlaves("WORKER").size(), equalTo(2));
+
+			// the batch of two got one planned, so only the other one is asked for again
+			assertThat(workers.getRequested(), equalTo(3));
+			assertThat(workers.getPlanned(), equalTo(2));
+			assertThat("the root is kept, not provisioned again", roots.getRequested(), equalTo(1));
+		} finally {
+			((CompoundSlave) node).terminate();
+		}
+	}
+
+	private StubCloud stub(String role) {
+		StubCloud result = new StubCloud(name.getMethodName() + "-" + role, name.getMethodName() + "-" + role);
+
+		j.jenkins.clouds.add(result);
+		backends.add(result);
+
+		return result;
+	}
+
+	private Collection<PlannedNode> provision(SlaveEntry... entries) {
+		String label = name.getMethodName();
+
+		CompoundCloud cloud = new CompoundCloud(label, "0", Arrays.asList(new ConfigurationEntry(label, Arrays.asList(entries))), "1");
+		j.jenkins.clouds.add(cloud);
+
+		Collection<PlannedNode> result = cloud.provision(j.jenkins.getLabel(label), 1);
+		assertThat(result.size(), equalTo(1));
+
+		return result;
+	}
+
+	private static void awaitTornDown(StubCloud cloud, int seconds) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+
+		while (cloud.getAlive() > 0 || cloud.getDelivered() < cloud.getPlanned()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail(cloud.getAlive() + " nodes of " + cloud.name + " still alive after " + seconds + " seconds");
+			}
+			Thread.sleep(200);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package ru.yandex.jenkins.plugins.compound.test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundPool;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+
+public class CompoundPoolTest {
+
+	@Rule public JenkinsRule j = new JenkinsRule();
+	@Rule public TestName name = new TestName();
+
+	@Test
+	public void testReserveUpToTarget() throws Exception {
+		CompoundPool pool = new CompoundPool();
+		ConfigurationEntry entry = entry("2", "3", "1");
+
+		assertThat(pool.reserveDeficit(entry, 10, 0), equalTo(2));
+		assertThat("assembling ones count", pool.reserveDeficit(entry, 10, 0), equalTo(0));
+		assertThat("forecast raises the target up to max", pool.reserveDeficit(entry, 10, 5), equalTo(1));
+
+		pool.assemblingFailed(entry);
+		assertThat(pool.count(entry), equalTo(2));
+		assertThat("capacity", pool.reserveDeficit(entry, 0, 5), equalTo(0));
+	}
+
+	@Test
+	public void testTakeGrowsTargetOnMiss() throws Exception {
+		CompoundPool pool = new CompoundPool();
+		ConfigurationEntry entry = entry("0", "2", "1");
+		List<CompoundSlave> stale = new ArrayList<CompoundSlave>();
+
+		assertThat(pool.take(entry, stale), is(nullValue()));
+		assertThat(pool.reserveDeficit(entry, 10, 0), equalTo(1));
+
+		CompoundSlave compound = createOnlineCompound(name.getMethodName());
+		pool.offer(entry, compound);
+
+		assertThat(pool.take(entry, stale), is(compound));
+		assertThat(stale, is(empty()));
+		assertThat(pool.getStatus(entry).getHits(), equalTo(1L));
+		assertThat(pool.getStatus(entry).getMisses(), equalTo(1L));
+	}
+
+	@Test
+	public void testEvictIdle() throws Exception {
+		CompoundPool pool = new CompoundPool();
+		ConfigurationEntry entry = entry("1", "3", "1");
+
+		assertThat(pool.reserveDeficit(entry, 10, 3), equalTo(3));
+
+		CompoundSlave first = createOnlineCompound(name.getMethodName() + "-1");
+		pool.offer(entry, first);
+		pool.offer(entry, createOnlineCompound(name.getMethodName() + "-2"));
+		pool.offer(entry, createOnlineCompound(name.getMethodName() + "-3"));
+
+		assertThat("fresh ones stay", pool.evictIdle(entry, 0), is(empty()));
+
+		long later = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+
+		assertThat("predicted demand is kept", pool.evictIdle(entry, 2, later), contains(first));
+		assertThat("min pool is kept", pool.evictIdle(entry, 0, later), hasSize(1));
+		assertThat(pool.count(entry), equalTo(1));
+		assertThat(pool.getStatus(entry).getEvictions(), equalTo(2L));
+	}
+
+	@Test
+	public void testRetainDropsRemovedConfigurations() throws Exception {
+		CompoundPool pool = new CompoundPool();
+		ConfigurationEntry kept = entry("1", "1", "1");
+		ConfigurationEntry removed = new ConfigurationEntry("other", Collections.<SlaveEntry> emptyList(), "1", "1", "1");
+
+		pool.reserveDeficit(kept, 10, 0);
+		pool.reserveDeficit(removed, 10, 0);
+
+		CompoundSlave compound = createOnlineCompound(name.getMethodName());
+		pool.offer(removed, compound);
+
+		assertThat(pool.retain(Arrays.asList(kept)), contains(compound));
+		assertThat(pool.count(removed), equalTo(0));
+		assertThat(pool.count(kept), equalTo(1));
+	}
+
+	@Test
+	public void testDefaultIdleTimeout() throws Exception {
+		List<SlaveEntry> entries = Collections.emptyList();
+
+		assertThat(new ConfigurationEntry("plain", entries).getPoolIdleMinutes(), equalTo(ConfigurationEntry.DEFAULT_POOL_IDLE_MINUTES));
+		assertThat("blank in the form", new ConfigurationEntry("blank", entries, "0", "1", "").getPoolIdleMinutes(),
+				equalTo(ConfigurationEntry.DEFAULT_POOL_IDLE_MINUTES));
+		assertThat("explicit zero keeps pooled compounds", new ConfigurationEntry("zero", entries, "0", "1", "0").getPoolIdleMinutes(),
+				equalTo(0));
+	}
+
+	private ConfigurationEntry entry(String minPool, String maxPool, String poolIdleMinutes) {
+		return new ConfigurationEntry(name.getMethodName(), Arrays.asList(new SlaveEntry(CompoundSlave.ROLE_ROOT, "backend", "1")), minPool,
+				maxPool, poolIdleMinutes);
+	}
+
+	private CompoundSlave createOnlineCompound(String name) throws Exception {
+		return new CompoundSlave(name, "Test", "Test", Arrays.asList(new Entry(j.createOnlineSlave().getNodeName(), CompoundSlave.ROLE_ROOT)));
+	}
+}
@@ -0,0 +1,97 @@
+package ru.yandex.jenkins.plugins.compound.test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import hudson.EnvVars;
+import hudson.model.Computer;
+import hudson.model.Node.Mode;
+import hudson.model.Slave;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+import hudson.util.StreamTaskListener;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Matcher;
+
+import jenkins.model.Jenkins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundSlave;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+
+public class CompoundSlaveMigrationTest {
+
+	@Rule public JenkinsRule j = new JenkinsRule();
+	@Rule public TestName name = new TestName();
+
+	@Test
+	public void testWholeSubSlavesMigratedToNames() throws Exception {
+		Slave root = j.createOnlineSlave();
+		CompoundSlave compound = new CompoundSlave(name.getMethodName(), "Test", "Test", Arrays.asList(new Entry(root.getNodeName(),
+				CompoundSlave.ROLE_ROOT)));
+
+		CompoundSlave migrated = (CompoundSlave) Jenkins.XSTREAM2.fromXML(toOldFormat(compound, root));
+
+		assertThat(migrated.getSubSlaveNames(), hasKey(CompoundSlave.ROLE_ROOT));
+		assertThat(migrated.getSubSlaveNames().get(CompoundSlave.ROLE_ROOT), contains(root.getNodeName()));
+
+		String saved = Jenkins.XSTREAM2.toXML(migrated);
+		assertThat(saved, containsString("<roles>"));
+		assertThat(saved, not(containsString("<slaves>")));
+		assertThat(saved, not(containsString("<self>")));
+	}
+
+	@Test
+	public void testMigratedCompoundWorks() throws Exception {
+		Slave root = j.createOnlineSlave();
+		CompoundSlave compound = new CompoundSlave(name.getMethodName(), "Test", "Test", Arrays.asList(new Entry(root.getNodeName(),
+				CompoundSlave.ROLE_ROOT)));
+
+		CompoundSlave migrated = (CompoundSlave) Jenkins.XSTREAM2.fromXML(toOldFormat(compound, root));
+		j.jenkins.addNode(migrated);
+
+		Computer computer = j.jenkins.getComputer(name.getMethodName());
+		computer.connect(false).get();
+
+		EnvVars env = computer.buildEnvironment(StreamTaskListener.fromStdout());
+
+		assertThat(env, hasKey("root_1_ip"));
+	}
+
+	@Test
+	public void testReplacedSubSlaveResolvedAgain() throws Exception {
+		Slave root = j.createOnlineSlave();
+		CompoundSlave compound = new CompoundSlave(name.getMethodName(), "Test", "Test", Arrays.asList(new Entry(root.getNodeName(),
+				CompoundSlave.ROLE_ROOT)));
+
+		assertThat(compound.getSlaves(CompoundSlave.ROLE_ROOT), contains(root));
+
+		DumbSlave replaced = new DumbSlave(root.getNodeName(), "Test", root.getRemoteFS(), "1", Mode.NORMAL, "", j.createComputerLauncher(null),
+				RetentionStrategy.NOOP, Collections.<NodeProperty<?>> emptyList());
+		j.jenkins.addNode(replaced);
+
+		assertThat(compound.getSlaves(CompoundSlave.ROLE_ROOT), contains((Slave) replaced));
+	}
+
+	/**
+	 * @return the compound as older versions persisted it, with whole sub-slaves instead of their names
+	 */
+	private static String toOldFormat(CompoundSlave compound, Slave root) {
+		String subSlave = Jenkins.XSTREAM2.toXML(root);
+		String xml = Jenkins.XSTREAM2.toXML(compound);
+
+		assertThat(xml, containsString("<roles>"));
+
+		return xml.replaceFirst("(?s)<roles>.*?</roles>", Matcher.quoteReplacement("<slaves><entry><string>" + CompoundSlave.ROLE_ROOT
+				+ "</string><list>" + subSlave + "</list></entry></slaves>"));
+	}
+}
@@ -0,0 +1,117 @@
+package ru.yandex.jenkins.plugins.compound.test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Node.Mode;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundSlave;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave.Entry;
+import ru.yandex.jenkins.plugins.compound.SubSlaveReservations;
+
+public class SubSlaveReservationsTest {
+
+	@Rule public JenkinsRule j = new JenkinsRule();
+	@Rule public TestName name = new TestName();
+
+	@Test
+	public void testShareAndRelease() throws Exception {
+		DumbSlave slave = createOnlineSlave(name.getMethodName(), 2);
+		SubSlaveReservations reservations = SubSlaveReservations.get();
+		LabelAtom label = new LabelAtom(name.getMethodName());
+
+		reservations.reserve(slave.getNodeName(), "first", 1);
+
+		List<Node> shared = reservations.share(label, 1, "second", 1);
+		assertThat(shared, contains((Node) slave));
+		assertThat(reservations.isShared(slave.getNodeName(), "second"), is(true));
+
+		assertThat("no executors left", reservations.share(label, 1, "third", 1), is(empty()));
+
+		assertThat("second still holds it", reservations.release(slave.getNodeName(), "first"), is(false));
+		assertThat(reservations.getOwners(slave.getNodeName()), contains("second"));
+
+		assertThat(reservations.release(slave.getNodeName(), "second"), is(true));
+		assertThat(reservations.getOwners(slave.getNodeName()), is(empty()));
+	}
+
+	@Test
+	public void testWholeIsNotShared() throws Exception {
+		DumbSlave slave = createOnlineSlave(name.getMethodName(), 2);
+		SubSlaveReservations reservations = SubSlaveReservations.get();
+
+		reservations.reserve(slave.getNodeName(), "first", SubSlaveReservations.WHOLE);
+
+		assertThat(reservations.isShared(slave.getNodeName(), "first"), is(false));
+		assertThat(reservations.share(new LabelAtom(name.getMethodName()), 1, "second", 1), is(empty()));
+
+		assertThat(reservations.release(slave.getNodeName(), "first"), is(true));
+	}
+
+	@Test
+	public void testTransfer() throws Exception {
+		DumbSlave slave = createOnlineSlave(name.getMethodName(), 2);
+		SubSlaveReservations reservations = SubSlaveReservations.get();
+
+		reservations.reserve(slave.getNodeName(), "first", 1);
+		reservations.reserve(slave.getNodeName(), "second", 1);
+
+		assertThat("second still holds it", reservations.transfer(slave.getNodeName(), "first", "pool"), is(false));
+		assertThat(reservations.getOwners(slave.getNodeName()), contains("first", "second"));
+
+		reservations.release(slave.getNodeName(), "second");
+
+		assertThat(reservations.transfer(slave.getNodeName(), "first", "pool"), is(true));
+		assertThat(reservations.getOwners(slave.getNodeName()), contains("pool"));
+		assertThat(reservations.isShared(slave.getNodeName(), "pool"), is(false));
+
+		reservations.release(slave.getNodeName(), "pool");
+	}
+
+	@Test
+	public void testKeptAcrossDisconnect() throws Exception {
+		DumbSlave slave = createOnlineSlave(name.getMethodName(), 1);
+		SubSlaveReservations reservations = SubSlaveReservations.get();
+		CompoundSlave compound = new CompoundSlave("compound-" + name.getMethodName(), "Test", "Test", Arrays.asList(new Entry(
+				slave.getNodeName(), CompoundSlave.ROLE_ROOT)));
+
+		j.jenkins.addNode(compound);
+		Computer computer = compound.toComputer();
+		computer.connect(false).get();
+
+		computer.disconnect(null).get();
+		assertThat("disconnect keeps the reservation", reservations.getOwners(slave.getNodeName()), contains(compound.getNodeName()));
+
+		computer.connect(false).get();
+		assertThat(reservations.getOwners(slave.getNodeName()), contains(compound.getNodeName()));
+
+		compound.terminate();
+		assertThat(reservations.getOwners(slave.getNodeName()), is(empty()));
+	}
+
+	private DumbSlave createOnlineSlave(String label, int executors) throws Exception {
+		DumbSlave slave = new DumbSlave("slave-" + label, "Test", j.createTmpDir().getPath(), Integer.toString(executors), Mode.NORMAL, label,
+				j.createComputerLauncher(null), RetentionStrategy.NOOP, Collections.<NodeProperty<?>> emptyList());
+
+		j.jenkins.addNode(slave);
+		slave.toComputer().connect(false).get();
+
+		return slave;
+	}
+}
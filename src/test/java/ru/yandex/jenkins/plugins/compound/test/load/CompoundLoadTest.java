@@ -0,0 +1,157 @@
+package ru.yandex.jenkins.plugins.compound.test.load;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import hudson.model.Node;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import ru.yandex.jenkins.plugins.compound.CompoundCloud;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundCloud.ConfigurationEntry.SlaveEntry;
+import ru.yandex.jenkins.plugins.compound.CompoundSlave;
+
+/**
+ * Drives {@link CompoundCloud} through bursts of concurrent provisioning against {@link StubCloud}s and reports throughput, thread usage and
+ * leaked nodes through its logger.
+ *
+ * Excluded from the regular build; run with <b>mvn -P load test</b>. Burst shape and backend behaviour are tuned with system properties, e.g.
+ * <b>-Dload.compounds=500 -Dload.failureRate=0.05</b>.
+ *
+ * @author pupssman
+ */
+public class CompoundLoadTest {
+	private static final Logger logger = Logger.getLogger(CompoundLoadTest.class.getCanonicalName());
+
+	private static final int COMPOUNDS = Integer.getInteger("load.compounds", 200);
+	private static final int BURSTS = Integer.getInteger("load.bursts", 4);
+	private static final int WORKERS = Integer.getInteger("load.workers", 4);
+	private static final long MIN_LATENCY = Long.getLong("load.minLatencyMillis", 200);
+	private static final long MEAN_LATENCY = Long.getLong("load.meanLatencyMillis", 500);
+	private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("load.failureRate", "0.02"));
+	private static final double PARTIAL_RATE = Double.parseDouble(System.getProperty("load.partialDeliveryRate", "0.1"));
+	private static final long TERMINATION = Long.getLong("load.terminationMillis", 100);
+	private static final long DEADLINE_SECONDS = Long.getLong("load.deadlineSeconds", 600);
+
+	@Rule public JenkinsRule j = new JenkinsRule();
+
+	private final List<StubCloud> backends = new ArrayList<StubCloud>();
+
+	@After
+	public void shutdownBackends() {
+		for (StubCloud backend : backends) {
+			backend.shutdown();
+		}
+	}
+
+	@Test
+	public void testBurstProvisioning() throws Exception {
+		j.timeout = 0;
+
+		StubCloud roots = stub("stub-root", "load-root");
+		StubCloud workers = stub("stub-worker", "load-worker");
+
+		CompoundCloud cloud = new CompoundCloud("load", "0", Arrays.asList(new ConfigurationEntry("load-compound", Arrays.asList(new SlaveEntry(
+				CompoundSlave.ROLE_ROOT, "load-root", "1"), new SlaveEntry("WORKER", "load-worker", Integer.toString(WORKERS))))), "1");
+		j.jenkins.clouds.add(cloud);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		int threadsBefore = threads.getThreadCount();
+
+		long started = System.currentTimeMillis();
+		List<PlannedNode> planned = new ArrayList<PlannedNode>();
+
+		for (int burst = 0; burst < BURSTS; burst++) {
+			int size = COMPOUNDS / BURSTS + (burst < COMPOUNDS % BURSTS ? 1 : 0);
+			planned.addAll(cloud.provision(j.jenkins.getLabel("load-compound"), size));
+		}
+
+		int assembled = 0;
+		int failed = 0;
+		long deadline = started + TimeUnit.SECONDS.toMillis(DEADLINE_SECONDS);
+
+		for (PlannedNode plannedNode : planned) {
+			try {
+				Node node = plannedNode.future.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				assembled++;
+				((CompoundSlave) node).terminate();
+			} catch (ExecutionException e) {
+				failed++;
+			} catch (TimeoutException e) {
+				failed++;
+				plannedNode.future.cancel(true);
+			}
+		}
+
+		long elapsed = System.currentTimeMillis() - started;
+
+		awaitQuiescence(Arrays.asList(roots, workers), deadline);
+
+		int leakedNodes = j.jenkins.getNodes().size();
+
+		logger.info(MessageFormat.format("{0} compounds planned, {1} assembled, {2} failed in {3} ms: {4,number,#.##} compounds/s",
+				planned.size(), assembled, failed, elapsed, assembled * 1000.0 / Math.max(1, elapsed)));
+		logger.info(MessageFormat.format("threads: {0} before, {1} peak, {2} after", threadsBefore, threads.getPeakThreadCount(),
+				threads.getThreadCount()));
+
+		for (StubCloud backend : backends) {
+			logger.info(MessageFormat.format("{0}: {1} requested, {2} planned, {3} delivered, {4} failed, {5} terminated, {6} leaked",
+					backend.name, backend.getRequested(), backend.getPlanned(), backend.getDelivered(), backend.getFailed(), backend.getTerminated(),
+					backend.getAlive()));
+		}
+
+		logger.info(MessageFormat.format("nodes left in Jenkins: {0}", leakedNodes));
+
+		assertThat("planned", planned.size(), equalTo(COMPOUNDS));
+		assertThat("nodes left in Jenkins", leakedNodes, equalTo(0));
+
+		for (StubCloud backend : backends) {
+			assertThat("nodes leaked by " + backend.name, backend.getAlive(), equalTo(0));
+		}
+	}
+
+	private StubCloud stub(String name, String label) {
+		StubCloud result = new StubCloud(name, label).withLatency(MIN_LATENCY, MEAN_LATENCY).withFailureRate(FAILURE_RATE)
+				.withPartialDelivery(PARTIAL_RATE).withTermination(TERMINATION);
+
+		j.jenkins.clouds.add(result);
+		backends.add(result);
+
+		return result;
+	}
+
+	/**
+	 * Waits until cleanup of failed compounds has terminated everything the backends delivered
+	 */
+	private void awaitQuiescence(Collection<StubCloud> clouds, long deadline) throws InterruptedException {
+		while (System.currentTimeMillis() < deadline) {
+			int alive = 0;
+			for (StubCloud cloud : clouds) {
+				alive += cloud.getAlive();
+			}
+
+			if (alive == 0 && j.jenkins.getNodes().isEmpty()) {
+				return;
+			}
+
+			Thread.sleep(500);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package ru.yandex.jenkins.plugins.compound.test.load;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Descriptor.FormException;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.slaves.RetentionStrategy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process backend cloud for load simulation.
+ *
+ * Nodes are delivered after an exponentially distributed latency on top of a fixed minimum, a share of them fails, a batch request may be
+ * partially planned and termination takes a while. Nothing leaves the JVM.
+ *
+ * @author pupssman
+ */
+public class StubCloud extends Cloud {
+	private final String label;
+
+	private transient long minLatencyMillis = 0;
+	private transient long meanExtraLatencyMillis = 0;
+	private transient double failureRate = 0;
+	private transient double partialDeliveryRate = 0;
+	private transient long terminationMillis = 0;
+
+	private final transient Random random = new Random();
+	private final transient ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+
+	private final transient AtomicInteger requested = new AtomicInteger();
+	private final transient AtomicInteger planned = new AtomicInteger();
+	private final transient AtomicInteger delivered = new AtomicInteger();
+	private final transient AtomicInteger failed = new AtomicInteger();
+	private final transient AtomicInteger terminated = new AtomicInteger();
+	private final transient AtomicInteger counter = new AtomicInteger();
+
+	public StubCloud(String name, String label) {
+		super(name);
+		this.label = label;
+	}
+
+	/**
+	 * @param minMillis
+	 *            every node takes at least that long
+	 * @param meanExtraMillis
+	 *            mean of the exponentially distributed latency on top of the minimum
+	 */
+	public StubCloud withLatency(long minMillis, long meanExtraMillis) {
+		this.minLatencyMillis = minMillis;
+		this.meanExtraLatencyMillis = meanExtraMillis;
+		return this;
+	}
+
+	/**
+	 * @param rate
+	 *            share of planned nodes that fail instead of being delivered
+	 */
+	public StubCloud withFailureRate(double rate) {
+		this.failureRate = rate;
+		return this;
+	}
+
+	/**
+	 * @param rate
+	 *            share of batch requests that get only part of the workload planned
+	 */
+	public StubCloud withPartialDelivery(double rate) {
+		this.partialDeliveryRate = rate;
+		return this;
+	}
+
+	/**
+	 * @param millis
+	 *            how long terminating a node takes
+	 */
+	public StubCloud withTermination(long millis) {
+		this.terminationMillis = millis;
+		return this;
+	}
+
+	@Override
+	public boolean canProvision(Label label) {
+		return label != null && label.getName().equals(this.label);
+	}
+
+	@Override
+	public Collection<PlannedNode> provision(Label label, int excessWorkload) {
+		requested.addAndGet(excessWorkload);
+
+		int toPlan = excessWorkload;
+		synchronized (random) {
+			if (excessWorkload > 1 && random.nextDouble() < partialDeliveryRate) {
+				toPlan = 1 + random.nextInt(excessWorkload - 1);
+			}
+		}
+
+		List<PlannedNode> result = new ArrayList<PlannedNode>();
+
+		for (int i = 0; i < toPlan; i++) {
+			final String nodeName = name + "-" + counter.incrementAndGet();
+			final boolean fail;
+			final long latency;
+
+			synchronized (random) {
+				fail = random.nextDouble() < failureRate;
+				latency = minLatencyMillis + (long) (-Math.log(1 - random.nextDouble()) * meanExtraLatencyMillis);
+			}
+
+			planned.incrementAndGet();
+
+			result.add(new PlannedNode(nodeName, scheduler.schedule(new Callable<Node>() {
+				@Override
+				public Node call() throws Exception {
+					if (fail) {
+						failed.incrementAndGet();
+						throw new IOException("Simulated failure of " + nodeName);
+					}
+					delivered.incrementAndGet();
+					return new StubSlave(nodeName, StubCloud.this);
+				}
+			}, latency, TimeUnit.MILLISECONDS), 1));
+		}
+
+		return result;
+	}
+
+	public int getRequested() {
+		return requested.get();
+	}
+
+	public int getPlanned() {
+		return planned.get();
+	}
+
+	public int getDelivered() {
+		return delivered.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public int getTerminated() {
+		return terminated.get();
+	}
+
+	/**
+	 * @return delivered nodes that were not terminated
+	 */
+	public int getAlive() {
+		return delivered.get() - terminated.get();
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<Cloud> {
+		@Override
+		public String getDisplayName() {
+			return "Stub cloud";
+		}
+	}
+
+	/**
+	 * Node of the {@link StubCloud}; never comes online
+	 *
+	 * @author pupssman
+	 */
+	public static class StubSlave extends AbstractCloudSlave {
+		private static final long serialVersionUID = 1L;
+
+		private final transient StubCloud cloud;
+
+		public StubSlave(String name, StubCloud cloud) throws FormException, IOException {
+			super(name, "Stub node", "/tmp/" + name, 1, Mode.EXCLUSIVE, cloud.label, new JNLPLauncher(), RetentionStrategy.NOOP, Collections
+					.<NodeProperty<?>> emptyList());
+			this.cloud = cloud;
+		}
+
+		@Override
+		public AbstractCloudComputer<StubSlave> createComputer() {
+			return new AbstractCloudComputer<StubSlave>(this);
+		}
+
+		@Override
+		protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+			if (cloud != null) {
+				Thread.sleep(cloud.terminationMillis);
+				cloud.terminated.incrementAndGet();
+			}
+		}
+
+		@Extension
+		public static class DescriptorImpl extends SlaveDescriptor {
+			@Override
+			public String getDisplayName() {
+				return "Stub node";
+			}
+
+			@Override
+			public boolean isInstantiable() {
+				return false;
+			}
+		}
+	}
+}